@@ -0,0 +1,446 @@
+package com.starlingbank;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Hands out key pairs generated ahead of time on background threads, so getting one doesn't wait
+ * seconds for an RSA 4096 key pair to be generated.
+ * <p>
+ * The pool keeps a number of ready key pairs for each algorithm and size it's been asked for, and
+ * starts generating another whenever one is taken. When none is ready but one is being generated,
+ * the caller waits for that one rather than generating another alongside it. Only when the pool has
+ * run dry is a key pair generated while the caller waits. Call {@link #prefill} at startup so even
+ * the first key pair is ready.
+ * <p>
+ * Given a directory and a passphrase, ready key pairs are also saved there, encrypted with AES-GCM
+ * under a key derived from the passphrase with PBKDF2, so they survive a restart. That's what makes
+ * a short-lived program fast: key pairs generated in the background on one run are ready on the
+ * next. A key pair's file is deleted before the key pair is handed out, so it's never handed out
+ * twice.
+ * <p>
+ * Both the signer in public-api-examples and the Payment Services examples in ps-api-examples
+ * compile this one copy, so a fix here reaches both.
+ */
+public class KeyPairPool implements AutoCloseable {
+
+  private static final String SALT_FILE = "pool.salt";
+  private static final int SALT_LENGTH = 16;
+  private static final String SUFFIX = ".keypair";
+  private static final byte FORMAT_VERSION = 1;
+  private static final int PBKDF2_ITERATIONS = 310_000;
+  private static final int GCM_IV_LENGTH = 12;
+  private static final int GCM_TAG_BITS = 128;
+
+  private static volatile KeyPairPool shared;
+
+  private final int readyPerKind;
+  private final Path directory;
+  private final SecretKey encryptionKey;
+  private final SecureRandom random = new SecureRandom();
+  private final Map<String, Supply> supplies = new ConcurrentHashMap<>();
+  private final ExecutorService executor;
+
+  /**
+   * Creates a pool that only keeps key pairs in memory.
+   * @param readyPerKind Number of key pairs to keep ready for each algorithm and size
+   */
+  public KeyPairPool(int readyPerKind) {
+    this(readyPerKind, null, null);
+  }
+
+  /**
+   * Creates a pool that saves its key pairs to a directory, and picks up any saved there already.
+   * @param readyPerKind Number of key pairs to keep ready for each algorithm and size
+   * @param directory Directory to save key pairs in, or null to only keep them in memory
+   * @param passphrase Passphrase to encrypt saved key pairs with, needed with a directory
+   */
+  public KeyPairPool(int readyPerKind, Path directory, char[] passphrase) {
+    if (readyPerKind < 0) {
+      throw new IllegalArgumentException("readyPerKind must not be negative");
+    }
+    if (directory != null && (passphrase == null || passphrase.length == 0)) {
+      throw new IllegalArgumentException("A passphrase is needed to save key pairs");
+    }
+    this.readyPerKind = readyPerKind;
+    this.directory = directory;
+
+    AtomicInteger threadCount = new AtomicInteger();
+    ThreadPoolExecutor threadPool = new ThreadPoolExecutor(
+        Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().availableProcessors(),
+        30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+          Thread thread = new Thread(runnable, "key-pair-pool-" + threadCount.incrementAndGet());
+          // Never keep the JVM running, or compete with the work the key pairs are for
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        });
+    threadPool.allowCoreThreadTimeOut(true);
+    this.executor = threadPool;
+
+    try {
+      if (directory != null) {
+        Files.createDirectories(directory);
+        this.encryptionKey = deriveKey(passphrase, salt(directory));
+        loadSaved();
+      } else {
+        this.encryptionKey = null;
+      }
+    } catch (IOException | GeneralSecurityException e) {
+      executor.shutdownNow();
+      throw new IllegalStateException("Failed to open key pair pool in " + directory, e);
+    }
+  }
+
+  /**
+   * Gets the pool shared by the whole process, creating it the first time.
+   * <p>
+   * It keeps {@code keyPairPool.size} key pairs ready for each algorithm and size, 2 by default.
+   * If the {@code KEY_PAIR_POOL_PASSPHRASE} environment variable is set, they're saved in the
+   * {@code keyPairPool.dir} directory, {@code ~/.starling/key-pair-pool} by default.
+   */
+  public static KeyPairPool shared() {
+    KeyPairPool pool = shared;
+    if (pool == null) {
+      synchronized (KeyPairPool.class) {
+        pool = shared;
+        if (pool == null) {
+          String dir = System.getProperty("keyPairPool.dir",
+              Paths.get(System.getProperty("user.home"), ".starling", "key-pair-pool").toString());
+          String passphrase = System.getenv("KEY_PAIR_POOL_PASSPHRASE");
+          pool = passphrase != null && !passphrase.isEmpty()
+              ? new KeyPairPool(Integer.getInteger("keyPairPool.size", 2), Paths.get(dir), passphrase.toCharArray())
+              : new KeyPairPool(Integer.getInteger("keyPairPool.size", 2));
+          shared = pool;
+        }
+      }
+    }
+    return pool;
+  }
+
+  /**
+   * Starts generating key pairs of an algorithm and size in the background, if not enough are ready.
+   * @param algorithm Key algorithm, probably "RSA" or "EC"
+   * @param keySize Key size in bits
+   */
+  public void prefill(String algorithm, int keySize) throws NoSuchAlgorithmException {
+    // Fail now for an unknown algorithm, rather than on a background thread
+    KeyPairGenerator.getInstance(algorithm);
+    refill(supply(algorithm, keySize));
+  }
+
+  /**
+   * Takes a key pair, which returns at once unless the pool has run out of this kind. If one is
+   * being generated, it waits for that one.
+   * @param algorithm Key algorithm, probably "RSA" or "EC"
+   * @param keySize Key size in bits
+   * @return Key pair, which nothing else is given
+   */
+  public KeyPair take(String algorithm, int keySize) throws NoSuchAlgorithmException {
+    Supply supply = supply(algorithm, keySize);
+    try {
+      PooledKeyPair pooled;
+      while ((pooled = next(supply)) != null) {
+        if (pooled.file == null) {
+          return pooled.keyPair;
+        }
+        try {
+          Files.delete(pooled.file);
+          return pooled.keyPair;
+        } catch (IOException e) {
+          // Something else may have it, so leave it be
+          System.err.println("Skipping saved key pair that couldn't be deleted: " + e);
+        }
+      }
+      return generate(algorithm, keySize);
+    } finally {
+      refill(supply);
+    }
+  }
+
+  /**
+   * Whether key pairs are saved, so any generated in the background before exit are ready on the
+   * next run. Without that, key pairs still being generated at exit are thrown away.
+   */
+  public boolean isPersistent() {
+    return directory != null;
+  }
+
+  /**
+   * Gets the number of key pairs ready to take of an algorithm and size.
+   */
+  public int ready(String algorithm, int keySize) {
+    Supply supply = supplies.get(kind(algorithm, keySize));
+    return supply == null ? 0 : supply.ready.size();
+  }
+
+  /**
+   * Stops generating key pairs. Saved key pairs are kept.
+   */
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  private Supply supply(String algorithm, int keySize) {
+    return supplies.computeIfAbsent(kind(algorithm, keySize), kind -> new Supply(algorithm, keySize));
+  }
+
+  private void refill(Supply supply) {
+    while (true) {
+      int generating = supply.generating.get();
+      if (executor.isShutdown() || supply.ready.size() + generating >= readyPerKind) {
+        return;
+      }
+      if (supply.generating.compareAndSet(generating, generating + 1)) {
+        executor.execute(() -> {
+          try {
+            KeyPair keyPair = generate(supply.algorithm, supply.keySize);
+            supply.ready.add(new PooledKeyPair(keyPair, save(supply, keyPair)));
+          } catch (NoSuchAlgorithmException | RuntimeException e) {
+            System.err.println("Failed to generate " + kind(supply.algorithm, supply.keySize) + " key pair: " + e);
+          } finally {
+            supply.generating.decrementAndGet();
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Gets the next ready key pair, waiting for one being generated rather than generating another
+   * alongside it, or null if none are ready or coming.
+   */
+  private static PooledKeyPair next(Supply supply) {
+    PooledKeyPair pooled = supply.ready.poll();
+    try {
+      // A generation is only counted as done once its key pair is ready, so none are missed
+      while (pooled == null && supply.generating.get() > 0) {
+        pooled = supply.ready.poll(100, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    return pooled;
+  }
+
+  private static KeyPair generate(String algorithm, int keySize) throws NoSuchAlgorithmException {
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(algorithm);
+    keyPairGenerator.initialize(keySize);
+    return keyPairGenerator.generateKeyPair();
+  }
+
+  /**
+   * Saves a key pair, returning its file, or null if there's nowhere to save it or saving failed.
+   */
+  private Path save(Supply supply, KeyPair keyPair) {
+    if (directory == null) {
+      return null;
+    }
+    String kind = kind(supply.algorithm, supply.keySize);
+    Path file = directory.resolve(kind + "_" + UUID.randomUUID() + SUFFIX);
+    Path temporary = directory.resolve(file.getFileName() + ".tmp");
+    try {
+      ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(plaintext);
+      byte[] privateKey = keyPair.getPrivate().getEncoded();
+      byte[] publicKey = keyPair.getPublic().getEncoded();
+      out.writeInt(privateKey.length);
+      out.write(privateKey);
+      out.writeInt(publicKey.length);
+      out.write(publicKey);
+
+      byte[] iv = new byte[GCM_IV_LENGTH];
+      random.nextBytes(iv);
+      Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new GCMParameterSpec(GCM_TAG_BITS, iv));
+      // Bind the kind into the tag, so a renamed file can't pass for another kind of key pair
+      cipher.updateAAD(kind.getBytes(StandardCharsets.UTF_8));
+      byte[] ciphertext = cipher.doFinal(plaintext.toByteArray());
+      Arrays.fill(privateKey, (byte) 0);
+
+      ByteArrayOutputStream contents = new ByteArrayOutputStream();
+      contents.write(FORMAT_VERSION);
+      contents.write(iv);
+      contents.write(ciphertext);
+      // Write then rename, so a crash never leaves a partial key pair to load
+      createOwnerOnly(temporary);
+      Files.write(temporary, contents.toByteArray());
+      Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE);
+      return file;
+    } catch (IOException | GeneralSecurityException e) {
+      System.err.println("Failed to save " + kind + " key pair, keeping it in memory only: " + e);
+      try {
+        Files.deleteIfExists(temporary);
+      } catch (IOException ignored) {
+        // Nothing more to do
+      }
+      return null;
+    }
+  }
+
+  private void loadSaved() throws IOException {
+    int unreadable = 0;
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(SUFFIX + ".tmp")) {
+          // Left by a crash while saving
+          Files.deleteIfExists(file);
+          continue;
+        }
+        String[] parts = name.split("_");
+        if (!name.endsWith(SUFFIX) || parts.length != 3) {
+          continue;
+        }
+        try {
+          String algorithm = parts[0];
+          int keySize = Integer.parseInt(parts[1]);
+          KeyPair keyPair = load(file, algorithm, kind(algorithm, keySize));
+          supply(algorithm, keySize).ready.add(new PooledKeyPair(keyPair, file));
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+          unreadable++;
+        }
+      }
+    }
+    if (unreadable > 0) {
+      System.err.println("Skipped " + unreadable + " saved key pairs in " + directory
+          + " that couldn't be read, maybe with a different passphrase");
+    }
+  }
+
+  private KeyPair load(Path file, String algorithm, String kind) throws IOException, GeneralSecurityException {
+    byte[] contents = Files.readAllBytes(file);
+    if (contents.length <= 1 + GCM_IV_LENGTH || contents[0] != FORMAT_VERSION) {
+      throw new IOException("Unknown format");
+    }
+    Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new GCMParameterSpec(GCM_TAG_BITS, contents, 1, GCM_IV_LENGTH));
+    cipher.updateAAD(kind.getBytes(StandardCharsets.UTF_8));
+    byte[] plaintext = cipher.doFinal(contents, 1 + GCM_IV_LENGTH, contents.length - 1 - GCM_IV_LENGTH);
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(plaintext));
+    byte[] privateKey = new byte[in.readInt()];
+    in.readFully(privateKey);
+    byte[] publicKey = new byte[in.readInt()];
+    in.readFully(publicKey);
+    Arrays.fill(plaintext, (byte) 0);
+
+    KeyFactory keyFactory = KeyFactory.getInstance(algorithm);
+    return new KeyPair(keyFactory.generatePublic(new X509EncodedKeySpec(publicKey)),
+        keyFactory.generatePrivate(new PKCS8EncodedKeySpec(privateKey)));
+  }
+
+  /**
+   * Gets the directory's salt, creating it the first time. Two processes opening a new directory at
+   * once must agree on the salt, or the key pairs one saves can't be read by the other, so only the
+   * first to create the file writes it, and the other reads what it wrote.
+   */
+  private static byte[] salt(Path directory) throws IOException {
+    Path file = directory.resolve(SALT_FILE);
+    if (!Files.exists(file)) {
+      byte[] salt = new byte[SALT_LENGTH];
+      new SecureRandom().nextBytes(salt);
+      try (OutputStream out = Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+        out.write(salt);
+        return salt;
+      } catch (FileAlreadyExistsException e) {
+        // Created by another process in the meantime, so use its salt
+      }
+    }
+    // The other process may not have written it yet
+    for (int attempt = 0; attempt < 50; attempt++) {
+      byte[] salt = Files.readAllBytes(file);
+      if (salt.length == SALT_LENGTH) {
+        return salt;
+      }
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    throw new IOException("Salt in " + file + " is incomplete");
+  }
+
+  private static SecretKey deriveKey(char[] passphrase, byte[] salt) throws GeneralSecurityException {
+    PBEKeySpec keySpec = new PBEKeySpec(passphrase, salt, PBKDF2_ITERATIONS, 256);
+    try {
+      byte[] key = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(keySpec).getEncoded();
+      return new SecretKeySpec(key, "AES");
+    } finally {
+      keySpec.clearPassword();
+    }
+  }
+
+  private static void createOwnerOnly(Path file) throws IOException {
+    if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+      Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    }
+  }
+
+  private static String kind(String algorithm, int keySize) {
+    return algorithm + "_" + keySize;
+  }
+
+  private static class Supply {
+    private final String algorithm;
+    private final int keySize;
+    private final BlockingQueue<PooledKeyPair> ready = new LinkedBlockingQueue<>();
+    private final AtomicInteger generating = new AtomicInteger();
+
+    Supply(String algorithm, int keySize) {
+      this.algorithm = algorithm;
+      this.keySize = keySize;
+    }
+  }
+
+  private static class PooledKeyPair {
+    private final KeyPair keyPair;
+    private final Path file;
+
+    PooledKeyPair(KeyPair keyPair, Path file) {
+      this.keyPair = keyPair;
+      this.file = file;
+    }
+  }
+}
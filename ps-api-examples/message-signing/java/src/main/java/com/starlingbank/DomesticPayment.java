@@ -0,0 +1,66 @@
+package com.starlingbank;
+
+/**
+ * An instruction to pay a UK account by Faster Payments, in pounds.
+ */
+public class DomesticPayment {
+
+  private final String sortCode;
+  private final String accountNumber;
+  private final String accountName;
+  private final String reference;
+  private final long minorUnits;
+
+  public DomesticPayment(String sortCode, String accountNumber, String accountName, String reference, long minorUnits) {
+    this.sortCode = sortCode;
+    this.accountNumber = accountNumber;
+    this.accountName = accountName;
+    this.reference = reference;
+    this.minorUnits = minorUnits;
+  }
+
+  public String getSortCode() {
+    return sortCode;
+  }
+
+  public String getAccountNumber() {
+    return accountNumber;
+  }
+
+  public String getAccountName() {
+    return accountName;
+  }
+
+  public String getReference() {
+    return reference;
+  }
+
+  public long getMinorUnits() {
+    return minorUnits;
+  }
+
+  /**
+   * Gets the payload to PUT to the domestic payment endpoint.
+   */
+  public String toJson() {
+    return "{\"domesticInstructionAccount\": {\"sortCode\":\"" + escape(sortCode) + "\", \"accountNumber\": \"" + escape(accountNumber) + "\", \"accountName\": \"" + escape(accountName) + "\"}, \"reference\": \"" + escape(reference) + "\", \"currencyAndAmount\": {\"currency\":\"GBP\", \"minorUnits\":" + minorUnits + "}, \"type\": \"SIP\"}";
+  }
+
+  /**
+   * Escapes text for a JSON string, as names and references can contain quotes.
+   */
+  private static String escape(String text) {
+    StringBuilder escaped = new StringBuilder(text.length());
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\\') {
+        escaped.append('\\').append(c);
+      } else if (c < 0x20) {
+        escaped.append(String.format("\\u%04x", (int) c));
+      } else {
+        escaped.append(c);
+      }
+    }
+    return escaped.toString();
+  }
+}
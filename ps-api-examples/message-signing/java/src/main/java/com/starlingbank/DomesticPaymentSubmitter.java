@@ -0,0 +1,250 @@
+package com.starlingbank;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Submits a stream of domestic payments from an address, with a number of payments in flight at once.
+ * <p>
+ * Each payment gets its own payment uid, and is signed with a fresh Date and Digest just before it's
+ * sent. A payment that fails, whether with an error response or no response at all, is passed on
+ * like any other result and the rest carry on. Payments are read from the stream only as there's
+ * room for them in flight, and each result is handed to a callback as it arrives rather than kept,
+ * so a stream of any length is submitted without holding it all in memory. Only each payment's
+ * latency is kept, for the percentiles in the {@link Report}.
+ */
+public class DomesticPaymentSubmitter {
+
+  private final PaymentServicesClient client;
+  private final String paymentBusinessUid;
+  private final String accountUid;
+  private final String addressUid;
+  private final int maxInFlight;
+
+  /**
+   * Creates a submitter.
+   * @param client Client to send payments with, which should allow at least maxInFlight connections
+   * @param paymentBusinessUid Your payment business uid from the SPS portal
+   * @param accountUid Account to pay from
+   * @param addressUid Address on the account to pay from
+   * @param maxInFlight Most payments to have sent and be waiting for a response for at once
+   */
+  public DomesticPaymentSubmitter(PaymentServicesClient client, String paymentBusinessUid, String accountUid, String addressUid, int maxInFlight) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1");
+    }
+    this.client = client;
+    this.paymentBusinessUid = paymentBusinessUid;
+    this.accountUid = accountUid;
+    this.addressUid = addressUid;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Submits every payment, returning once each has had a response or failed.
+   * @param payments Payments to submit
+   * @param onResult Given the result of each payment as it arrives, which may not be in the order of
+   *     the stream. It's called by one thread at a time.
+   * @return The number of payments that succeeded and failed, with throughput and latency
+   */
+  public Report submitAll(Stream<DomesticPayment> payments, Consumer<PaymentResult> onResult) throws InterruptedException {
+    Tally tally = new Tally();
+    Semaphore inFlight = new Semaphore(maxInFlight);
+    ExecutorService executor = Executors.newFixedThreadPool(maxInFlight);
+    long start = System.nanoTime();
+    try {
+      Iterator<DomesticPayment> iterator = payments.iterator();
+      for (int index = 0; iterator.hasNext(); index++) {
+        DomesticPayment payment = iterator.next();
+        int paymentIndex = index;
+        inFlight.acquire();
+        executor.execute(() -> {
+          try {
+            PaymentResult result = submit(paymentIndex, payment);
+            synchronized (tally) {
+              tally.add(result);
+              onResult.accept(result);
+            }
+          } finally {
+            inFlight.release();
+          }
+        });
+      }
+      // Wait for the last payments to finish
+      inFlight.acquire(maxInFlight);
+    } finally {
+      executor.shutdownNow();
+    }
+    long elapsedNanos = System.nanoTime() - start;
+
+    synchronized (tally) {
+      return new Report(Arrays.copyOf(tally.latencies, tally.count), tally.succeeded, elapsedNanos);
+    }
+  }
+
+  private PaymentResult submit(int index, DomesticPayment payment) {
+    String paymentUid = UUID.randomUUID().toString();
+    String resourcePath = "/api/v1/" + paymentBusinessUid + "/account/" + accountUid + "/address/" + addressUid + "/payment/" + paymentUid + "/domestic";
+    long start = System.nanoTime();
+    try {
+      PaymentServicesClient.Response response = client.put(resourcePath, payment.toJson(), PaymentServicesClient.PAYMENT_DATE_OFFSET);
+      return new PaymentResult(index, payment, paymentUid, response.getStatusCode(), response.getBody(), System.nanoTime() - start);
+    } catch (IOException | RuntimeException e) {
+      return new PaymentResult(index, payment, paymentUid, 0, e.toString(), System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Counts results, keeping only their latencies. Guarded by itself.
+   */
+  private static class Tally {
+    private long[] latencies = new long[1024];
+    private int count;
+    private long succeeded;
+
+    void add(PaymentResult result) {
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, count * 2);
+      }
+      latencies[count++] = result.getLatencyNanos();
+      if (result.isSucceeded()) {
+        succeeded++;
+      }
+    }
+  }
+
+  /**
+   * The result of submitting one payment.
+   */
+  public static class PaymentResult {
+    private final int index;
+    private final DomesticPayment payment;
+    private final String paymentUid;
+    private final int statusCode;
+    private final String response;
+    private final long latencyNanos;
+
+    public PaymentResult(int index, DomesticPayment payment, String paymentUid, int statusCode, String response, long latencyNanos) {
+      this.index = index;
+      this.payment = payment;
+      this.paymentUid = paymentUid;
+      this.statusCode = statusCode;
+      this.response = response;
+      this.latencyNanos = latencyNanos;
+    }
+
+    /**
+     * Gets the position of the payment in the stream, from 0.
+     */
+    public int getIndex() {
+      return index;
+    }
+
+    public DomesticPayment getPayment() {
+      return payment;
+    }
+
+    public String getPaymentUid() {
+      return paymentUid;
+    }
+
+    /**
+     * Gets the HTTP status of the response, or 0 if there wasn't one.
+     */
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    /**
+     * Gets the body of the response, or the error if there wasn't one.
+     */
+    public String getResponse() {
+      return response;
+    }
+
+    public long getLatencyNanos() {
+      return latencyNanos;
+    }
+
+    public boolean isSucceeded() {
+      return statusCode >= 200 && statusCode < 300;
+    }
+  }
+
+  /**
+   * The outcome of a run: how many payments succeeded and failed, with its throughput and latency
+   * percentiles.
+   */
+  public static class Report {
+    private final long[] sortedLatencies;
+    private final long succeeded;
+    private final long elapsedNanos;
+
+    /**
+     * @param latencies The latency of every payment, in nanoseconds, which is sorted in place
+     * @param succeeded The number of payments that succeeded
+     * @param elapsedNanos How long the run took
+     */
+    public Report(long[] latencies, long succeeded, long elapsedNanos) {
+      Arrays.sort(latencies);
+      this.sortedLatencies = latencies;
+      this.succeeded = succeeded;
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Gets the number of payments submitted, whether they succeeded or not.
+     */
+    public long getSubmitted() {
+      return sortedLatencies.length;
+    }
+
+    public long getSucceeded() {
+      return succeeded;
+    }
+
+    public long getFailed() {
+      return getSubmitted() - succeeded;
+    }
+
+    public long getElapsedNanos() {
+      return elapsedNanos;
+    }
+
+    /**
+     * Gets the payments submitted per second, whether they succeeded or not.
+     */
+    public double getThroughput() {
+      return elapsedNanos == 0 ? 0 : getSubmitted() * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    /**
+     * Gets a latency percentile, by the nearest rank.
+     * @param percentile Percentile, from 0 to 100
+     * @return Latency in nanoseconds, or 0 if there were no payments
+     */
+    public long getLatencyPercentile(double percentile) {
+      if (sortedLatencies.length == 0) {
+        return 0;
+      }
+      int rank = (int) Math.ceil(percentile / 100 * sortedLatencies.length);
+      return sortedLatencies[Math.max(0, Math.min(rank, sortedLatencies.length) - 1)];
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Submitted %d payments in %.1fs (%.1f/s): %d succeeded, %d failed%n"
+              + "Latency ms: p50 %.1f, p90 %.1f, p99 %.1f, max %.1f",
+          getSubmitted(), elapsedNanos / 1e9, getThroughput(), getSucceeded(), getFailed(),
+          getLatencyPercentile(50) / 1e6, getLatencyPercentile(90) / 1e6, getLatencyPercentile(99) / 1e6, getLatencyPercentile(100) / 1e6);
+    }
+  }
+}
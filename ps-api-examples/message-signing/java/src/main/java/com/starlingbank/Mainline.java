@@ -3,21 +3,34 @@ package com.starlingbank;
 public class Mainline {
 
   public static void main(String[] args) throws Exception {
+    // Start generating key pairs now. With KEY_PAIR_POOL_PASSPHRASE set, any generated in the background are saved for
+    // the next run, so from then on step 1 takes one that's ready instead of waiting seconds for it to be generated.
+    // Without it, they'd be thrown away at exit, so step 1 just generates the one it needs.
+    if (KeyPairPool.shared().isPersistent()) {
+      KeyPairPool.shared().prefill("RSA", 4096);
+    }
+
+    // One example for every step, so the steps share its connections to the API
+    SigningExample example = new SigningExample();
+
     // 1. Set the file paths in the constants of SigningExample class then run this first to create a key pair
-    new SigningExample().generateKeyForPortal();
+    example.generateKeyForPortal();
 
     // 2. Upload the key to the SPS portal then complete the key uid, payment business uid and assigned sort code constants of SigningExample
 
     // 3. Run get for the business to verify key upload / request signing
-    // new SigningExample().httpGetExample();
+    // example.httpGetExample();
 
     // 4. Run to create an account for the business, set the account uid constant in SigningExample based on response
-    // new SigningExample().httpPutExampleAccount();
+    // example.httpPutExampleAccount();
 
     // 5. Run to create an address for the account created above, set the address uid constant in SigningExample based on response
-    // new SigningExample().httpPutExampleAddress();
+    // example.httpPutExampleAddress();
 
     // 6. Run to instruct a payment from the address created above
-    // new SigningExample().httpPutExamplePayment();
+    // example.httpPutExamplePayment();
+
+    // 7. Run to instruct many payments from the address at once, reporting throughput and latency
+    // example.httpPutExamplePayments(100);
   }
 }
@@ -0,0 +1,220 @@
+package com.starlingbank;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A client for the Payment Services API, which signs every request with your API key.
+ * <p>
+ * Create one client and reuse it for every request: it's thread safe, and keeps a pool of open
+ * connections, so only the first request to the API pays for connecting and the TLS handshake.
+ * Connections are kept alive for as long as the server allows, or {@link #DEFAULT_KEEP_ALIVE_SECONDS}
+ * if it doesn't say, and a background thread closes any left idle for longer. The private key is
+ * loaded once, when the client is created.
+ */
+public class PaymentServicesClient implements Closeable {
+
+  public static final int DEFAULT_MAX_CONNECTIONS = 20;
+  public static final long DEFAULT_KEEP_ALIVE_SECONDS = 30;
+  // Payment requests have always been dated this far ahead in these examples, so they still are
+  public static final Duration PAYMENT_DATE_OFFSET = Duration.ofSeconds(4);
+
+  private static final DateTimeFormatter SIGNATURE_TIMESTAMP_FORMATTER = DateTimeFormatter.ISO_OFFSET_DATE_TIME;
+  private static final long IDLE_CONNECTION_SECONDS = 60;
+  private static final int VALIDATE_AFTER_INACTIVITY_MILLIS = 2_000;
+  private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+  private static final int SOCKET_TIMEOUT_MILLIS = 30_000;
+  // How long a request waits for a connection from the pool when every one is in use
+  private static final int POOL_WAIT_TIMEOUT_MILLIS = 10_000;
+
+  // The server closes a connection it's had open this long, so stop using it just before
+  private static final ConnectionKeepAliveStrategy KEEP_ALIVE_STRATEGY = (response, context) -> {
+    long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+    return keepAlive > 0 ? keepAlive : TimeUnit.SECONDS.toMillis(DEFAULT_KEEP_ALIVE_SECONDS);
+  };
+
+  private static final ResponseHandler<Response> RESPONSE_HANDLER = response -> new Response(
+      response.getStatusLine().getStatusCode(),
+      response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+
+  private final String hostname;
+  private final String apiKeyUid;
+  private final PrivateKey privateKey;
+  private final CloseableHttpClient httpClient;
+
+  /**
+   * Creates a client, loading the private key from a file.
+   * @param hostname The API's address, e.g. "https://payment-api-sandbox.starlingbank.com"
+   * @param apiKeyUid Your API key uid from the SPS portal
+   * @param privateKeyPath Path to the DER encoded PKCS#8 private key for the API key
+   */
+  public PaymentServicesClient(String hostname, String apiKeyUid, String privateKeyPath) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+    this(hostname, apiKeyUid, loadPrivateKey(privateKeyPath), DEFAULT_MAX_CONNECTIONS);
+  }
+
+  /**
+   * Creates a client.
+   * @param hostname The API's address, e.g. "https://payment-api-sandbox.starlingbank.com"
+   * @param apiKeyUid Your API key uid from the SPS portal
+   * @param privateKey The private RSA key for the API key
+   * @param maxConnections Most connections to keep open to the API, so most requests in flight at once
+   */
+  public PaymentServicesClient(String hostname, String apiKeyUid, PrivateKey privateKey, int maxConnections) {
+    this.hostname = hostname;
+    this.apiKeyUid = apiKeyUid;
+    this.privateKey = privateKey;
+
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    // Every request goes to the same host, so it can have every connection
+    connectionManager.setMaxTotal(maxConnections);
+    connectionManager.setDefaultMaxPerRoute(maxConnections);
+    // Check a connection that's been idle is still open before using it, rather than failing a request on it
+    connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MILLIS);
+
+    httpClient = HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .setKeepAliveStrategy(KEEP_ALIVE_STRATEGY)
+        .evictExpiredConnections()
+        .evictIdleConnections(IDLE_CONNECTION_SECONDS, TimeUnit.SECONDS)
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+            .setConnectionRequestTimeout(POOL_WAIT_TIMEOUT_MILLIS)
+            .setSocketTimeout(SOCKET_TIMEOUT_MILLIS)
+            .build())
+        .setDefaultHeaders(Arrays.asList(
+            new BasicHeader("Accept", "application/json")))
+        .build();
+  }
+
+  /**
+   * Loads a DER encoded PKCS#8 RSA private key, as written by {@link SigningExample#generateKeyForPortal()}.
+   */
+  public static PrivateKey loadPrivateKey(String privateKeyPath) throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
+    byte[] privateKeyBytes = FileUtils.readFileToByteArray(new File(privateKeyPath));
+    return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(privateKeyBytes));
+  }
+
+  /**
+   * Sends a signed GET request.
+   * @param resourcePath The path to get, e.g. "/api/v1/{paymentBusinessUid}"
+   */
+  public Response get(String resourcePath) throws IOException {
+    // No payload so no digest needed on a GET
+    return execute(new HttpGet(hostname + resourcePath), "get", resourcePath, "", Duration.ZERO);
+  }
+
+  /**
+   * Sends a signed PUT request with a JSON payload.
+   * @param resourcePath The path to put to, e.g. "/api/v1/{paymentBusinessUid}/account/{accountUid}"
+   * @param payloadJson The JSON payload
+   */
+  public Response put(String resourcePath, String payloadJson) throws IOException {
+    return put(resourcePath, payloadJson, Duration.ZERO);
+  }
+
+  /**
+   * Sends a signed PUT request with a JSON payload, dated ahead of the current time.
+   * @param resourcePath The path to put to, e.g. "/api/v1/{paymentBusinessUid}/account/{accountUid}"
+   * @param payloadJson The JSON payload
+   * @param dateOffset How far ahead to date the request, e.g. {@link #PAYMENT_DATE_OFFSET} for a payment
+   */
+  public Response put(String resourcePath, String payloadJson, Duration dateOffset) throws IOException {
+    HttpPut put = new HttpPut(hostname + resourcePath);
+    put.setEntity(new StringEntity(payloadJson, ContentType.APPLICATION_JSON));
+    return execute(put, "put", resourcePath, calculateDigest(payloadJson), dateOffset);
+  }
+
+  /**
+   * Closes every connection, and stops closing idle ones.
+   */
+  @Override
+  public void close() throws IOException {
+    httpClient.close();
+  }
+
+  private Response execute(HttpRequestBase request, String httpMethod, String resourcePath, String digest, Duration dateOffset) throws IOException {
+    String timestamp = SIGNATURE_TIMESTAMP_FORMATTER.format(ZonedDateTime.now().plus(dateOffset));
+    String textToSign = "(request-target): " + httpMethod + " " + resourcePath + "\nDate: " + timestamp + "\nDigest: " + digest;
+
+    request.addHeader(Headers.AUTHORIZATION, calculateAuthorisationHeader(textToSign));
+    request.addHeader(Headers.DATE, timestamp);
+    request.addHeader(Headers.DIGEST, digest);
+    // The handler reads the whole response, so the connection goes back to the pool for the next request
+    return httpClient.execute(request, RESPONSE_HANDLER);
+  }
+
+  private String calculateAuthorisationHeader(String textToSign) {
+    try {
+      Signature instance = Signature.getInstance("SHA512withRSA"); // Could also use "SHA512withECDSA"
+      instance.initSign(privateKey);
+      instance.update(textToSign.getBytes(StandardCharsets.UTF_8));
+      String signature = Base64.getEncoder().encodeToString(instance.sign());
+
+      return "Signature keyid=\"" + apiKeyUid + "\",algorithm=\"rsa-sha512\",headers=\"(request-target) Date Digest\",signature=\"" + signature + "\"";
+    } catch (GeneralSecurityException e) {
+      throw new IllegalStateException("Error signing request", e);
+    }
+  }
+
+  private static String calculateDigest(String payload) {
+    try {
+      MessageDigest messageDigest = MessageDigest.getInstance("SHA-512");
+      return Base64.getEncoder().encodeToString(messageDigest.digest(payload.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("Every Java platform supports SHA-512", e);
+    }
+  }
+
+  /**
+   * A response from the API.
+   */
+  public static class Response {
+    private final int statusCode;
+    private final String body;
+
+    public Response(int statusCode, String body) {
+      this.statusCode = statusCode;
+      this.body = body;
+    }
+
+    public int getStatusCode() {
+      return statusCode;
+    }
+
+    public String getBody() {
+      return body;
+    }
+  }
+}
@@ -1,47 +1,25 @@
 package com.starlingbank;
 
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPut;
-import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.HttpClientBuilder;
-import org.apache.http.message.BasicHeader;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.URISyntaxException;
-import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SecureRandom;
-import java.security.Signature;
-import java.security.SignatureException;
 import java.security.spec.EncodedKeySpec;
 import java.security.spec.InvalidKeySpecException;
-import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.Arrays;
 import java.util.Base64;
-import java.util.Random;
 import java.util.UUID;
+import java.util.stream.Stream;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class SigningExample {
 
-  private static final DateTimeFormatter SIGNATURE_TIMESTAMP_FORMATTER = DateTimeFormatter.ISO_OFFSET_DATE_TIME;
-
   // Sandbox
   private static final String HOSTNAME = "https://payment-api-sandbox.starlingbank.com";
   private final String privateKeyPath = "PATH_TO_PRIVATE_KEY";
@@ -72,11 +50,12 @@ public class SigningExample {
 //  private final String paymentReference = "The Reference";
 //  private final long paymentAmount = 10L;
 
+  // Reused for every request, so they share connections and only load the key once
+  private PaymentServicesClient client;
 
   public void generateKeyForPortal() throws NoSuchAlgorithmException, IOException {
-    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
-    keyPairGenerator.initialize(4096, new SecureRandom(Long.toString(new Random().nextLong()).getBytes()));
-    KeyPair signingKey = keyPairGenerator.generateKeyPair();
+    // Generated in the background ahead of time, as RSA 4096 key pairs take seconds to generate
+    KeyPair signingKey = KeyPairPool.shared().take("RSA", 4096);
 
     PrivateKey privateKey = signingKey.getPrivate();
     PublicKey publicKey = signingKey.getPublic();
@@ -91,14 +70,7 @@ public class SigningExample {
     FileUtils.writeByteArrayToFile(new File(publicKeyPath), publicKeyBytes);
   }
 
-  public void httpGetExample() throws NoSuchAlgorithmException, InvalidKeySpecException, IOException, InvalidKeyException, SignatureException, URISyntaxException {
-    PrivateKey privateKey = loadPrivateKey();
-
-    // Define the resource to be called
-    String timestamp = SIGNATURE_TIMESTAMP_FORMATTER.format(ZonedDateTime.now());
-    String digest = ""; // No payload so no digest needed on a GET
-    String httpMethod = "get";
-
+  public void httpGetExample() throws NoSuchAlgorithmException, InvalidKeySpecException, IOException {
     // Get business
     String resourcePath = "/api/v1/" + paymentBusinessUid;
     // Get accounts for business
@@ -106,151 +78,72 @@ public class SigningExample {
     // Get addresses for acocunts
 //    String resourcePath = "/api/v1/" + paymentBusinessUid + "/account/" + accountUid + "/address";
 
-    String textToSign = "(request-target): " + httpMethod + " " + resourcePath + "\nDate: " + timestamp + "\nDigest: " + digest;
-
-    // Calculate the authorisation header
-    String authorisationHeader = calculateAuthorisationHeader(privateKey, textToSign);
-
-    // Make the HTTP request
-    HttpClient httpClient = HttpClientBuilder.create()
-        .setDefaultHeaders(Arrays.asList(
-            new BasicHeader("Accept", "application/json")))
-        .build();
-
-    HttpGet get = new HttpGet(new URIBuilder(HOSTNAME + resourcePath)
-        .build());
-    get.addHeader(Headers.AUTHORIZATION, authorisationHeader);
-    get.addHeader(Headers.DATE, timestamp);
-    get.addHeader(Headers.DIGEST, "");
-
-    HttpResponse response = httpClient.execute(get);
-    assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
-    System.out.println(IOUtils.toString(response.getEntity().getContent(), "utf-8"));
+    PaymentServicesClient.Response response = client().get(resourcePath);
+    assertThat(response.getStatusCode()).isEqualTo(200);
+    System.out.println(response.getBody());
   }
 
-  public void httpPutExampleAccount() throws NoSuchAlgorithmException, InvalidKeySpecException, IOException, InvalidKeyException, SignatureException, URISyntaxException {
-    PrivateKey privateKey = loadPrivateKey();
-
+  public void httpPutExampleAccount() throws NoSuchAlgorithmException, InvalidKeySpecException, IOException {
     String payloadJson = "{ \"description\":\"Test account\", \"accountHolder\":\"AGENCY\"}";
 
     // Define the resource to be called
-    String timestamp = SIGNATURE_TIMESTAMP_FORMATTER.format(ZonedDateTime.now());
-    String digest = calculateDigest(payloadJson);
-    String httpMethod = "put";
     String accountUid = UUID.randomUUID().toString();
     String resourcePath = "/api/v1/" + paymentBusinessUid + "/account/" + accountUid ;
-    String textToSign = "(request-target): " + httpMethod + " " + resourcePath + "\nDate: " + timestamp + "\nDigest: " + digest;
-
-    // Calculate the authorisation header
-    String authorisationHeader = calculateAuthorisationHeader(privateKey, textToSign);
 
-    // Make the HTTP request
-    HttpClient httpClient = createHttpClient();
-
-    HttpPut put = new HttpPut(new URIBuilder(HOSTNAME + resourcePath)
-        .build());
-    put.addHeader(Headers.AUTHORIZATION, authorisationHeader);
-    put.addHeader(Headers.DATE, timestamp);
-    put.addHeader(Headers.DIGEST, digest);
-    put.setEntity(new StringEntity(payloadJson));
-
-    HttpResponse response = httpClient.execute(put);
-    assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
-    System.out.println(IOUtils.toString(response.getEntity().getContent(), "utf-8"));
+    PaymentServicesClient.Response response = client().put(resourcePath, payloadJson);
+    assertThat(response.getStatusCode()).isEqualTo(200);
+    System.out.println(response.getBody());
   }
 
-  public void httpPutExampleAddress() throws NoSuchAlgorithmException, InvalidKeySpecException, IOException, InvalidKeyException, SignatureException, URISyntaxException {
-    PrivateKey privateKey = loadPrivateKey();
-
+  public void httpPutExampleAddress() throws NoSuchAlgorithmException, InvalidKeySpecException, IOException {
     String payloadJson = "{ \"accountName\":\"First Account\", \"sortCode\":\"" + sortCode + "\"}";
 
     // Define the resource to be called
-    String timestamp = SIGNATURE_TIMESTAMP_FORMATTER.format(ZonedDateTime.now());
-    String digest = calculateDigest(payloadJson);
-    String httpMethod = "put";
     String addressUid = UUID.randomUUID().toString();
     String resourcePath = "/api/v1/" + paymentBusinessUid + "/account/" + accountUid + "/address/" + addressUid;
-    String textToSign = "(request-target): " + httpMethod + " " + resourcePath + "\nDate: " + timestamp + "\nDigest: " + digest;
 
-    // Calculate the authorisation header
-    String authorisationHeader = calculateAuthorisationHeader(privateKey, textToSign);
-
-    // Make the HTTP request
-    HttpClient httpClient = createHttpClient();
-
-    HttpPut put = new HttpPut(new URIBuilder(HOSTNAME + resourcePath)
-        .build());
-    put.addHeader(Headers.AUTHORIZATION, authorisationHeader);
-    put.addHeader(Headers.DATE, timestamp);
-    put.addHeader(Headers.DIGEST, digest);
-    put.setEntity(new StringEntity(payloadJson));
-
-    HttpResponse response = httpClient.execute(put);
-    assertThat(response.getStatusLine().getStatusCode()).isEqualTo(200);
-    System.out.println(IOUtils.toString(response.getEntity().getContent(), "utf-8"));
+    PaymentServicesClient.Response response = client().put(resourcePath, payloadJson);
+    assertThat(response.getStatusCode()).isEqualTo(200);
+    System.out.println(response.getBody());
   }
 
-  public void httpPutExamplePayment() throws NoSuchAlgorithmException, InvalidKeySpecException, IOException, InvalidKeyException, SignatureException, URISyntaxException {
-    PrivateKey privateKey = loadPrivateKey();
-
-    String payloadJson = "{\"domesticInstructionAccount\": {\"sortCode\":\""+destinationSortCode+"\", \"accountNumber\": \""+destinationAccountNumber+"\", \"accountName\": \"" + destinationAccountName + "\"}, \"reference\": \"" + paymentReference + "\", \"currencyAndAmount\": {\"currency\":\"GBP\", \"minorUnits\":" + paymentAmount + "}, \"type\": \"SIP\"}";
+  public void httpPutExamplePayment() throws NoSuchAlgorithmException, InvalidKeySpecException, IOException {
+    String payloadJson = destinationPayment().toJson();
 
     // Define the resource to be called
-    String timestamp = SIGNATURE_TIMESTAMP_FORMATTER.format(ZonedDateTime.now().plusSeconds(4));
-    String digest = calculateDigest(payloadJson);
-    String httpMethod = "put";
     String paymentUid = UUID.randomUUID().toString();
     String resourcePath = "/api/v1/" + paymentBusinessUid + "/account/" + accountUid + "/address/" + addressUid + "/payment/" + paymentUid + "/domestic";
-    String textToSign = "(request-target): " + httpMethod + " " + resourcePath + "\nDate: " + timestamp + "\nDigest: " + digest;
-
-    // Calculate the authorisation header
-    String authorisationHeader = calculateAuthorisationHeader(privateKey, textToSign);
-
-    // Make the HTTP request
-    HttpClient httpClient = createHttpClient();
 
-    HttpPut put = new HttpPut(new URIBuilder(HOSTNAME + resourcePath)
-        .build());
-    put.addHeader(Headers.AUTHORIZATION, authorisationHeader);
-    put.addHeader(Headers.DATE, timestamp);
-    put.addHeader(Headers.DIGEST, digest);
-    put.setEntity(new StringEntity(payloadJson));
-
-    HttpResponse response = httpClient.execute(put);
-    final String responsePayload = IOUtils.toString(response.getEntity().getContent(), "utf-8");
-    assertThat(response.getStatusLine().getStatusCode()).withFailMessage("Expected 200 but got " + response.getStatusLine().getStatusCode() + " with payload " + responsePayload).isEqualTo(200);
-  }
-
-
-  private HttpClient createHttpClient() {
-    return HttpClientBuilder.create()
-        .setDefaultHeaders(Arrays.asList(
-            new BasicHeader("Content-Type", "application/json"),
-            new BasicHeader("Accept", "application/json")))
-        .build();
+    PaymentServicesClient.Response response = client().put(resourcePath, payloadJson, PaymentServicesClient.PAYMENT_DATE_OFFSET);
+    assertThat(response.getStatusCode()).withFailMessage("Expected 200 but got " + response.getStatusCode() + " with payload " + response.getBody()).isEqualTo(200);
   }
 
-  private String calculateAuthorisationHeader(PrivateKey privateKey, String textToSign) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
-    Signature instance = Signature.getInstance("SHA512withRSA"); // Could also use "SHA512withECDSA"
-    instance.initSign(privateKey);
-    instance.update(textToSign.getBytes());
-    byte[] encodedSignedString = Base64.getEncoder().encode(instance.sign());
-    String signature = new String(encodedSignedString);
-
-    return "Signature keyid=\"" + apiKeyUid + "\",algorithm=\"rsa-sha512\",headers=\"(request-target) Date Digest\",signature=\"" + signature + "\"";
+  public void httpPutExamplePayments(int count) throws NoSuchAlgorithmException, InvalidKeySpecException, IOException, InterruptedException {
+    DomesticPaymentSubmitter submitter = new DomesticPaymentSubmitter(client(), paymentBusinessUid, accountUid, addressUid, PaymentServicesClient.DEFAULT_MAX_CONNECTIONS);
+
+    // Each payment gets its own payment uid, so these are all separate payments. Failures are reported as they happen,
+    // rather than every result being kept until the end
+    DomesticPaymentSubmitter.Report report = submitter.submitAll(Stream.generate(this::destinationPayment).limit(count), result -> {
+      if (!result.isSucceeded()) {
+        System.out.println("Payment " + result.getPaymentUid() + " failed with " + result.getStatusCode() + ": " + result.getResponse());
+      }
+    });
+    System.out.println(report);
   }
 
-  private String calculateDigest(String payload) throws NoSuchAlgorithmException {
-    MessageDigest messageDigest = MessageDigest.getInstance("SHA-512");
-    byte[] payloadBytes = payload.getBytes();
-    return Base64.getEncoder().encodeToString(messageDigest.digest(payloadBytes));
+  private DomesticPayment destinationPayment() {
+    return new DomesticPayment(destinationSortCode, destinationAccountNumber, destinationAccountName, paymentReference, paymentAmount);
   }
 
-  private PrivateKey loadPrivateKey() throws IOException, NoSuchAlgorithmException, InvalidKeySpecException {
-    byte[] privateKeyBytes = FileUtils.readFileToByteArray(new File(privateKeyPath));
-    KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-    EncodedKeySpec privateKeySpec = new PKCS8EncodedKeySpec(privateKeyBytes);
-    return keyFactory.generatePrivate(privateKeySpec);
+  /**
+   * Gets the client for every request, creating it the first time. It's created on first use, as
+   * there's no private key to load until {@link #generateKeyForPortal()} has been run.
+   */
+  private PaymentServicesClient client() throws NoSuchAlgorithmException, InvalidKeySpecException, IOException {
+    if (client == null) {
+      client = new PaymentServicesClient(HOSTNAME, apiKeyUid, privateKeyPath);
+    }
+    return client;
   }
 
   // Not needed but for reference
@@ -0,0 +1,62 @@
+package com.starlingbank;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+
+/**
+ * Lets Jetty, and so Spark, run on any {@link ExecutorService}, such as one that starts a virtual
+ * thread per task.
+ * <p>
+ * The executor is expected to run every task it is given without queueing, so this pool never
+ * reports itself as low on threads. It is shut down when the server stops.
+ */
+class ExecutorThreadPool extends AbstractLifeCycle implements ThreadPool {
+
+  private final ExecutorService executor;
+  private final AtomicInteger running = new AtomicInteger();
+
+  ExecutorThreadPool(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  @Override
+  public void execute(Runnable task) {
+    executor.execute(() -> {
+      running.incrementAndGet();
+      try {
+        task.run();
+      } finally {
+        running.decrementAndGet();
+      }
+    });
+  }
+
+  @Override
+  public void join() throws InterruptedException {
+    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public int getThreads() {
+    return running.get();
+  }
+
+  @Override
+  public int getIdleThreads() {
+    return 0;
+  }
+
+  @Override
+  public boolean isLowOnThreads() {
+    return false;
+  }
+
+  @Override
+  protected void doStop() throws Exception {
+    executor.shutdownNow();
+    super.doStop();
+  }
+}
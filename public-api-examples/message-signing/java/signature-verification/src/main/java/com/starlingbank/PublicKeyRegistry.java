@@ -0,0 +1,232 @@
+package com.starlingbank;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The public keys that requests may be signed with, indexed by keyid.
+ * <p>
+ * Keys are loaded from PEM files named {@code <keyid>.key} in a directory, and may be RSA or EC.
+ * The directory is watched, so keys can be added, replaced or removed without a restart. Each
+ * reload publishes a new immutable snapshot, so looking up a key never takes a lock.
+ */
+class PublicKeyRegistry implements Closeable {
+
+  private static final String KEY_FILE_SUFFIX = ".key";
+  private static final String[] KEY_ALGORITHMS = {"RSA", "EC"};
+
+  private final Path directory;
+  private final WatchService watchService;
+  private volatile Map<String, RegisteredKey> keys = Collections.emptyMap();
+
+  private PublicKeyRegistry(Path directory) throws IOException {
+    this.directory = directory;
+    this.watchService = directory.getFileSystem().newWatchService();
+    directory.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+  }
+
+  /**
+   * Loads the keys in a directory, then keeps watching it for changes.
+   *
+   * @param directory Directory of {@code <keyid>.key} public key files
+   * @return The registry
+   */
+  static PublicKeyRegistry watching(Path directory) throws IOException {
+    PublicKeyRegistry registry = new PublicKeyRegistry(directory);
+    registry.reload();
+
+    Thread watcher = new Thread(registry::watch, "public-key-watcher");
+    watcher.setDaemon(true);
+    watcher.start();
+    return registry;
+  }
+
+  /**
+   * Gets the key for a keyid.
+   *
+   * @return The key, or null if there is no key with that keyid
+   */
+  RegisteredKey get(String keyid) {
+    return keys.get(keyid.toLowerCase());
+  }
+
+  int size() {
+    return keys.size();
+  }
+
+  /**
+   * Reads the directory again, keeping the keys (and their warm verifiers) whose files haven't
+   * changed.
+   */
+  synchronized void reload() throws IOException {
+    Map<String, RegisteredKey> current = keys;
+    Map<String, RegisteredKey> reloaded = new HashMap<>();
+
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + KEY_FILE_SUFFIX)) {
+      for (Path file : files) {
+        String keyid = keyid(file);
+        if (keyid == null) {
+          System.err.println("Ignoring public key file not named <keyid>" + KEY_FILE_SUFFIX + ": " + file);
+          continue;
+        }
+        try {
+          FileTime lastModified = Files.getLastModifiedTime(file);
+          RegisteredKey existing = current.get(keyid);
+          reloaded.put(keyid, existing != null && existing.lastModified.equals(lastModified)
+              ? existing
+              : new RegisteredKey(keyid, readPublicKey(file), lastModified));
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+          // Skipped, e.g. while it's still being written, and loaded on the next change to it
+          System.err.println("ERROR: Could not load public key from " + file + ": " + e);
+        }
+      }
+    }
+
+    keys = Collections.unmodifiableMap(reloaded);
+    System.out.println("Loaded " + reloaded.size() + " public key(s) from " + directory.toAbsolutePath());
+  }
+
+  @Override
+  public void close() throws IOException {
+    watchService.close();
+  }
+
+  private void watch() {
+    try {
+      while (true) {
+        WatchKey watchKey = watchService.take();
+        // Collect the burst of events a single file copy tends to produce before reloading
+        watchKey.pollEvents();
+        watchKey.reset();
+        try {
+          reload();
+        } catch (IOException | RuntimeException e) {
+          // Keep watching, so the next change is picked up
+          System.err.println("ERROR: Could not reload public keys from " + directory + ": " + e);
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // Shutting down
+    }
+  }
+
+  private static String keyid(Path file) {
+    String fileName = file.getFileName().toString();
+    String keyid = fileName.substring(0, fileName.length() - KEY_FILE_SUFFIX.length());
+    try {
+      UUID.fromString(keyid);
+      return keyid.toLowerCase();
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static PublicKey readPublicKey(Path file) throws IOException, InvalidKeySpecException {
+    String publicKeyContent = new String(Files.readAllBytes(file))
+        .replace("-----BEGIN PUBLIC KEY-----", "")
+        .replace("-----END PUBLIC KEY-----", "");
+    X509EncodedKeySpec publicKeySpec;
+    try {
+      publicKeySpec = new X509EncodedKeySpec(Base64.getMimeDecoder().decode(publicKeyContent));
+    } catch (IllegalArgumentException e) {
+      throw new InvalidKeySpecException("Not valid Base64", e);
+    }
+
+    // The encoding names the key algorithm, but KeyFactory won't tell us it, so try each in turn
+    for (String keyAlgorithm : KEY_ALGORITHMS) {
+      try {
+        return KeyFactory.getInstance(keyAlgorithm).generatePublic(publicKeySpec);
+      } catch (GeneralSecurityException e) {
+        // Not this algorithm
+      }
+    }
+    throw new InvalidKeySpecException("Not an RSA or EC public key");
+  }
+
+  /**
+   * A public key, with a pool of verifiers per signing algorithm kept ready to use. The pool isn't
+   * tied to threads, so verifiers are still reused when each request runs on a new virtual thread.
+   */
+  static final class RegisteredKey {
+
+    // Enough for every platform request thread; more than this are let go once used
+    private static final int MAX_IDLE_VERIFIERS = 64;
+
+    private final String keyid;
+    private final PublicKey publicKey;
+    private final FileTime lastModified;
+    private final Map<String, BlockingQueue<Signature>> verifiers = new ConcurrentHashMap<>();
+
+    private RegisteredKey(String keyid, PublicKey publicKey, FileTime lastModified) {
+      this.keyid = keyid;
+      this.publicKey = publicKey;
+      this.lastModified = lastModified;
+    }
+
+    String keyid() {
+      return keyid;
+    }
+
+    PublicKey publicKey() {
+      return publicKey;
+    }
+
+    /**
+     * Verifies a signature with this key.
+     *
+     * @param javaAlgorithm The Java name of the signing algorithm, e.g. "SHA256withRSA"
+     * @param signed The bytes that were signed
+     * @param signature The signature
+     * @return Whether the signature is valid
+     * @throws InvalidKeyException If this key can't be used with the signing algorithm
+     */
+    boolean verify(String javaAlgorithm, byte[] signed, byte[] signature)
+        throws InvalidKeyException, SignatureException {
+      BlockingQueue<Signature> idle = verifiers.computeIfAbsent(javaAlgorithm,
+          a -> new ArrayBlockingQueue<>(MAX_IDLE_VERIFIERS));
+      Signature verifier = idle.poll();
+      if (verifier == null) {
+        try {
+          verifier = Signature.getInstance(javaAlgorithm);
+        } catch (GeneralSecurityException e) {
+          throw new InvalidKeyException("Unsupported signing algorithm " + javaAlgorithm, e);
+        }
+        verifier.initVerify(publicKey);
+      }
+
+      // verify() resets the verifier, ready for the next signature with this key. One that threw
+      // may be part way through, so isn't put back.
+      verifier.update(signed);
+      boolean valid = verifier.verify(signature);
+      idle.offer(verifier);
+      return valid;
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package com.starlingbank;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Detects replayed requests: ones whose Date is too far from the server clock, or that have already
+ * been seen.
+ * <p>
+ * A request is identified by its keyid and the string that was signed, which covers its
+ * (request-target), Date and Digest, rather than by its signature. An ECDSA signature can be
+ * changed and still verify, e.g. by negating s or re-encoding the DER, so a replay with an altered
+ * signature would otherwise look new.
+ * <p>
+ * Requests are remembered as 64 bit fingerprints in a fixed size table, so memory use never
+ * grows. The table is split into buckets by the request's Date, one per {@link #BUCKET_SECONDS}
+ * seconds of the clock skew window. A replay carries the same Date as the original, so it always
+ * lands in the same bucket. Once a Date falls out of the window its bucket is reused; stale entries
+ * are recognised by a tag and overwritten in place, so nothing ever needs clearing. Checking and
+ * recording a request is a few array reads and a compare-and-set, without taking a lock.
+ */
+class ReplayGuard {
+
+  private static final long BUCKET_SECONDS = 10;
+  private static final int MAX_PROBES = 32;
+  private static final int TAG_SHIFT = 48;
+  private static final long FINGERPRINT_MASK = (1L << TAG_SHIFT) - 1;
+
+  enum Sighting {
+    /** The request hasn't been seen before, and has been recorded */
+    FIRST,
+    /** The request has already been seen within the clock skew window */
+    REPEATED,
+    /** Too many requests were seen with Dates around this one to record it */
+    UNTRACKED
+  }
+
+  private final Duration maxClockSkew;
+  private final int buckets;
+  private final int bucketMask;
+  private final AtomicLongArray fingerprints;
+
+  /**
+   * @param maxClockSkew How far a request's Date may be from the server clock, either way
+   * @param capacity Roughly how many requests to remember across the whole window
+   */
+  ReplayGuard(Duration maxClockSkew, int capacity) {
+    this.maxClockSkew = maxClockSkew;
+    // Cover the window either side of now, plus a bucket at each end for Dates part way through one
+    this.buckets = (int) ((2 * maxClockSkew.toSeconds() + BUCKET_SECONDS - 1) / BUCKET_SECONDS) + 2;
+    int bucketSize = Integer.highestOneBit(Math.max(MAX_PROBES, capacity / buckets - 1) << 1);
+    this.bucketMask = bucketSize - 1;
+    this.fingerprints = new AtomicLongArray(buckets * bucketSize);
+  }
+
+  Duration maxClockSkew() {
+    return maxClockSkew;
+  }
+
+  /**
+   * Parses a Date header, in either ISO-8601 or RFC 1123 format. Returns null if it can't be parsed.
+   */
+  static Instant parseDate(String date) {
+    if (date == null) {
+      return null;
+    }
+    try {
+      return OffsetDateTime.parse(date, DateTimeFormatter.ISO_OFFSET_DATE_TIME).toInstant();
+    } catch (DateTimeParseException e) {
+      try {
+        return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+      } catch (DateTimeParseException ignored) {
+        return null;
+      }
+    }
+  }
+
+  /**
+   * Whether a request dated {@code date} is within the clock skew window of {@code now}.
+   */
+  boolean isFresh(Instant date, Instant now) {
+    return Duration.between(date, now).abs().compareTo(maxClockSkew) <= 0;
+  }
+
+  /**
+   * Records a correctly signed request with a fresh Date, reporting whether it had already been seen.
+   *
+   * @param keyid The keyid the request was signed with
+   * @param signingString The string that was signed, including the request's Date
+   */
+  Sighting record(Instant date, String keyid, byte[] signingString) {
+    long epoch = Math.floorDiv(date.getEpochSecond(), BUCKET_SECONDS);
+    long hash = hash(keyid.toLowerCase().getBytes(StandardCharsets.UTF_8), signingString);
+    long entry = (epoch << TAG_SHIFT) | (hash & FINGERPRINT_MASK) | 1;
+    int base = (int) Math.floorMod(epoch, (long) buckets) * (bucketMask + 1);
+    int start = (int) (hash >>> 32);
+
+    for (int probe = 0; probe < MAX_PROBES; probe++) {
+      int index = base + ((start + probe) & bucketMask);
+      while (true) {
+        long current = fingerprints.get(index);
+        if (current == entry) {
+          return Sighting.REPEATED;
+        }
+        if (isLive(current, epoch)) {
+          break;
+        }
+        // Empty, or left over from a Date that has fallen out of the window
+        if (fingerprints.compareAndSet(index, current, entry)) {
+          return Sighting.FIRST;
+        }
+      }
+    }
+    return Sighting.UNTRACKED;
+  }
+
+  private static boolean isLive(long entry, long epoch) {
+    return entry != 0 && (entry >>> TAG_SHIFT) == (epoch & ((1L << (64 - TAG_SHIFT)) - 1));
+  }
+
+  /**
+   * FNV-1a over the keyid, a separator and the signing string, finished with a MurmurHash3 mix.
+   * Requests are only recorded once their signature is verified, so only the holder of a key can
+   * choose what's hashed for it.
+   */
+  private static long hash(byte[] keyid, byte[] signingString) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : keyid) {
+      hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+    }
+    // A keyid never contains a newline, so the two can't run into each other
+    hash = (hash ^ '\n') * 0x100000001b3L;
+    for (byte b : signingString) {
+      hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,174 @@
+package com.starlingbank;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.json.JSONObject;
+
+/**
+ * A structured log of received requests, one JSON object per line on stdout.
+ * <p>
+ * Request threads only place entries in a fixed size ring buffer, which a background thread
+ * drains to stdout, so logging never waits on the console. If the buffer is full the entry is
+ * dropped and counted rather than blocking the request; the number of dropped entries is logged
+ * once there is room again. Bodies are only logged for a sample of requests, and are truncated.
+ */
+class RequestLog {
+
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final int bodySampleRate;
+  private final int maxBodyBytes;
+  private final AtomicReferenceArray<Entry> ring;
+  private final int mask;
+  // Next slot for a request thread to claim
+  private final AtomicLong tail = new AtomicLong();
+  // Next slot for the writer to drain, only ever written by the writer thread
+  private volatile long head;
+  private final LongAdder dropped = new LongAdder();
+  private final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), UTF_8));
+
+  /**
+   * @param capacity Entries the buffer can hold, rounded up to a power of two
+   * @param bodySampleRate Log the body of 1 in this many requests, or 0 to never log bodies
+   * @param maxBodyBytes Longest body to log, longer bodies are truncated
+   */
+  RequestLog(int capacity, int bodySampleRate, int maxBodyBytes) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.ring = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+    this.bodySampleRate = bodySampleRate;
+    this.maxBodyBytes = maxBodyBytes;
+
+    Thread writer = new Thread(this::drain, "request-log-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Logs a request, without waiting.
+   *
+   * @param body Supplies the request body, only called if this request's body is sampled
+   */
+  void log(String host, String requestTarget, Collection<String> headers, BodySupplier body) {
+    byte[] sampledBody = null;
+    int bodyLength = -1;
+    if (bodySampleRate > 0 && ThreadLocalRandom.current().nextInt(bodySampleRate) == 0) {
+      byte[] fullBody = body.get();
+      bodyLength = fullBody.length;
+      sampledBody = bodyLength > maxBodyBytes ? Arrays.copyOf(fullBody, maxBodyBytes) : fullBody;
+    }
+    offer(new Entry(System.currentTimeMillis(), host, requestTarget, headers, sampledBody, bodyLength));
+  }
+
+  /**
+   * The number of entries dropped because the buffer was full.
+   */
+  long dropped() {
+    return dropped.sum();
+  }
+
+  private void offer(Entry entry) {
+    long claimed;
+    do {
+      claimed = tail.get();
+      if (claimed - head >= ring.length()) {
+        dropped.increment();
+        return;
+      }
+    } while (!tail.compareAndSet(claimed, claimed + 1));
+    ring.lazySet((int) claimed & mask, entry);
+  }
+
+  private void drain() {
+    long reportedDropped = 0;
+    while (true) {
+      Entry entry = ring.get((int) head & mask);
+      if (entry == null) {
+        // Either empty, or a request thread has claimed the slot but not filled it yet
+        flush();
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+        continue;
+      }
+      ring.lazySet((int) head & mask, null);
+      head = head + 1;
+
+      long droppedNow = dropped.sum();
+      if (droppedNow != reportedDropped) {
+        write(new JSONObject().put("droppedLogEntries", droppedNow - reportedDropped));
+        reportedDropped = droppedNow;
+      }
+      write(entry.toJson());
+    }
+  }
+
+  private void write(JSONObject json) {
+    try {
+      json.write(out);
+      out.write('\n');
+    } catch (IOException e) {
+      // Nowhere left to report it, carry on serving requests
+    }
+  }
+
+  private void flush() {
+    try {
+      out.flush();
+    } catch (IOException e) {
+      // Nowhere left to report it, carry on serving requests
+    }
+  }
+
+  @FunctionalInterface
+  interface BodySupplier {
+
+    byte[] get();
+  }
+
+  private static final class Entry {
+
+    private final long timestamp;
+    private final String host;
+    private final String requestTarget;
+    private final Collection<String> headers;
+    private final byte[] body;
+    private final int bodyLength;
+
+    Entry(long timestamp, String host, String requestTarget, Collection<String> headers, byte[] body, int bodyLength) {
+      this.timestamp = timestamp;
+      this.host = host;
+      this.requestTarget = requestTarget;
+      this.headers = headers;
+      this.body = body;
+      this.bodyLength = bodyLength;
+    }
+
+    JSONObject toJson() {
+      JSONObject json = new JSONObject()
+          .put("timestamp", timestamp)
+          .put("host", host)
+          .put("(request-target)", requestTarget)
+          .put("headers", headers);
+      if (body != null) {
+        json.put("body", new String(body, UTF_8));
+        if (body.length < bodyLength) {
+          json.put("bodyTruncatedFrom", bodyLength);
+        }
+      }
+      return json;
+    }
+  }
+}
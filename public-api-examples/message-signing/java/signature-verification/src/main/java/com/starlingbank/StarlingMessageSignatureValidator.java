@@ -14,17 +14,16 @@ import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Sets;
-import java.io.File;
+import com.starlingbank.PublicKeyRegistry.RegisteredKey;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
-import java.security.Signature;
 import java.security.SignatureException;
-import java.security.spec.EncodedKeySpec;
-import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
@@ -33,10 +32,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
-import org.apache.commons.io.FileUtils;
 import spark.Request;
 import spark.Response;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
 
 public class StarlingMessageSignatureValidator {
 
@@ -50,37 +52,81 @@ public class StarlingMessageSignatureValidator {
   private static final int minThreads = 2;
   private static final int timeOutMillis = 30000;
 
-  // The path to the Public Key used to sign the request
-  private static final String publicKeyPath = "starling-api-public.key";
+  // How requests are handled: "platform" uses a pool of up to maxThreads platform threads, "virtual" runs each request
+  // on its own virtual thread, so the server isn't limited to maxThreads requests at a time.
+  // Can also be set at startup, e.g. java -jar target/StarlingMessageSignatureValidator.jar --execution=virtual
+  private static final String execution = "platform";
+
+  // Requests are logged through a buffer of this many entries; if it fills up, entries are dropped rather than slowing requests down
+  private static final int requestLogCapacity = 8192;
+  // Log the body of 1 in this many requests (1 logs every body, 0 logs none), truncated to requestLogMaxBodyBytes
+  private static final int requestLogBodySampleRate = 1;
+  private static final int requestLogMaxBodyBytes = 4096;
+
+  // The directory of Public Keys used to sign requests, each named after its keyid e.g. "aaaaaaaa-aaaa-4aaa-aaaa-aaaaaaaaaaaa.key".
+  // Keys added to, replaced in or removed from this directory are picked up while the server is running.
+  private static final String publicKeyDirectory = "keys";
+
+  // Requests are treated as replays if their Date is more than this many seconds from the server clock, or if the same
+  // keyid has already signed the same headers. Up to replayWindowCapacity requests are remembered, using 8 bytes each.
+  private static final int maxClockSkewSeconds = 300;
+  private static final int replayWindowCapacity = 2_000_000;
   // END USER CONFIG
 
+  private static final RequestLog requestLog = new RequestLog(requestLogCapacity, requestLogBodySampleRate, requestLogMaxBodyBytes);
+  private static final ReplayGuard replayGuard = new ReplayGuard(Duration.ofSeconds(maxClockSkewSeconds), replayWindowCapacity);
+
   public static void main(String[] args) {
+    String execution = Arrays.stream(args)
+        .filter(arg -> arg.startsWith("--execution="))
+        .map(arg -> arg.substring("--execution=".length()))
+        .reduce((first, second) -> second)
+        .orElse(StarlingMessageSignatureValidator.execution);
 
-    // Prep Public Key from File Path - This step is for the purposes of this tool only
-    // and would otherwise rely on the keyid supplied in the request AuthHeader for retrieval.
-    PublicKey publicKey = getPublicKey();
+    // Load the Public Keys from the key directory, and keep watching it for changes.
+    // The keyid supplied in the request AuthHeader selects which key to verify with.
+    PublicKeyRegistry publicKeys = getPublicKeys();
 
-    if (publicKey != null) {
+    if (publicKeys != null) {
       // Start up and configure the web server
       port(port);
-      threadPool(maxThreads, minThreads, timeOutMillis);
+      ExecutorService requestExecutor = requestExecutor(execution);
+      if (requestExecutor == null) {
+        threadPool(maxThreads, minThreads, timeOutMillis);
+      } else {
+        EmbeddedServers.add(EmbeddedServers.defaultIdentifier(),
+            new EmbeddedJettyFactory().withThreadPool(new ExecutorThreadPool(requestExecutor)));
+      }
 
       path("/", () -> {
-        get("/*", (request, response) -> processRequest(request, response, publicKey));
+        get("/*", (request, response) -> processRequest(request, response, publicKeys));
 
-        post("/*", (request, response) -> processRequest(request, response, publicKey));
+        post("/*", (request, response) -> processRequest(request, response, publicKeys));
 
-        put("/*", (request, response) -> processRequest(request, response, publicKey));
+        put("/*", (request, response) -> processRequest(request, response, publicKeys));
       });
 
       awaitInitialization(); // Wait for server to be initialized
 
-      System.out.println("Server listening on: http://localhost:" + port + "/");
+      System.out.println("Server listening on: http://localhost:" + port + "/ handling requests on " + execution + " threads");
     }
   }
 
-  private static String processRequest(Request request, Response response, PublicKey publicKey)
-      throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+  /**
+   * Gets the executor to run the server on, or null to use Spark's own thread pool. To run on an
+   * executor of your choice, add it here.
+   */
+  private static ExecutorService requestExecutor(String execution) {
+    return switch (execution) {
+      case "platform" -> null;
+      case "virtual" -> Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("request-", 0).factory());
+      default -> throw new IllegalArgumentException(
+          "Unknown execution " + execution + ", expected one of: platform, virtual");
+    };
+  }
+
+  private static String processRequest(Request request, Response response, PublicKeyRegistry publicKeys)
+      throws NoSuchAlgorithmException {
     List<String> responseBody = new ArrayList<>();
 
     // Build the (request-target) value, noting that this excludes the hostname but does include any query parameters if present.
@@ -88,14 +134,11 @@ public class StarlingMessageSignatureValidator {
         request.requestMethod().toLowerCase() + " " + request.uri() :
         request.requestMethod().toLowerCase() + " " + request.uri() + "?" + request.queryString();
 
-    System.out.println("New request received from: " + request.host());
-    System.out.println("(request-target): " + requestPath);
-    System.out.println("Headers: " + request.headers());
-    System.out.println("Body: " + request.body());
+    requestLog.log(request.host(), requestPath, request.headers(), request::bodyAsBytes);
 
     // Get the Authorization header and split into required elements.
     // Note that for the purposes of this tool we are simplifying this process as we do not require the
-    // Bearer token or the keyid, though both of these elements are necessary for requests to the Starling API.
+    // Bearer token, though it is necessary for requests to the Starling API.
     Map<String, String> authorisationHeaders = mapAuthorisationHeaders(request);
 
     // Parse the Authorization Header to get required sub elements.
@@ -114,6 +157,20 @@ public class StarlingMessageSignatureValidator {
               .join(missingHeaders) + "\n");
     }
 
+    // Check that the Date header is close enough to the server clock that the request can't be an old one being replayed.
+    Instant date = ReplayGuard.parseDate(request.headers("Date"));
+    if (date == null) {
+      responseBody.add("Validation failure: Date header is missing, or is not an ISO-8601 or RFC 1123 date.\n");
+    } else if (replayGuard.isFresh(date, Instant.now())) {
+      responseBody.add("Date is within " + maxClockSkewSeconds + " seconds of the server clock.\n");
+    } else {
+      long skewSeconds = Duration.between(date, Instant.now()).toSeconds();
+      responseBody.add("Validation failure: Date is " + Math.abs(skewSeconds) + " seconds "
+          + (skewSeconds > 0 ? "behind" : "ahead of") + " the server clock, more than the " + maxClockSkewSeconds
+          + " seconds allowed. Sign each request with the current time, and check the clock on the machine signing them.\n");
+      date = null;
+    }
+
     // For non-GET requests, verify that the Message Digest supplied in the request headers matches the body payload.
     if (!request.requestMethod().equalsIgnoreCase("GET")) {
       String payloadDigest = Base64.getEncoder()
@@ -130,7 +187,7 @@ public class StarlingMessageSignatureValidator {
 
     // Carry out the signature validation checks.
     String validationChecks = Joiner.on("\n")
-        .join(validateSignature(keyid, publicKey, algorithm, signingString, signature));
+        .join(validateSignature(keyid, publicKeys, algorithm, signingString, signature, date));
 
     String responseString = Joiner.on("\n").join(responseBody);
     response.type("text/plain");
@@ -138,9 +195,12 @@ public class StarlingMessageSignatureValidator {
     return Joiner.on("\n").join(responseString, validationChecks);
   }
 
-  private static List<String> validateSignature(String keyid, PublicKey publicKey, String algorithm, String headers,
-                                                String signature)
-      throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+  /**
+   * @param date The request's Date, if it's within the clock skew window, in which case a correct signature is checked
+   *             against those already seen
+   */
+  private static List<String> validateSignature(String keyid, PublicKeyRegistry publicKeys, String algorithm, String headers,
+                                                String signature, Instant date) {
     List<String> verificationChecks = new ArrayList<>();
 
     // Prep algorithm by establishing the Java name, e.g. "rsa-sha256" = "SHA256withRSA";
@@ -154,12 +214,8 @@ public class StarlingMessageSignatureValidator {
               .toString(ACCEPTED_ALGORITHMS));
     }
 
-    // Prep Signature object using publicKey and headers
-    Signature sig = Signature.getInstance(javaAlgorithm);
     byte[] decodedSignature = Base64.getDecoder()
         .decode(signature.getBytes(Charset.defaultCharset()));
-    sig.initVerify(publicKey);
-    sig.update(headers.getBytes());
 
     boolean keyIdValid;
     try {
@@ -173,18 +229,34 @@ public class StarlingMessageSignatureValidator {
     verificationChecks.add("headers: " + headers.replaceAll("\n", " "));
     verificationChecks.add("signature: " + signature + "\n");
 
+    // Look up the Public Key for the keyid.
+    if (!keyIdValid) {
+      verificationChecks.add(
+          "Message signature could not be verified as the keyid in the signature header is not a UUID. This should be the keyid provided by Starling.");
+      return verificationChecks;
+    }
+    RegisteredKey publicKey = publicKeys.get(keyid);
+    if (publicKey == null) {
+      verificationChecks.add("Message signature could not be verified, no public key is registered for keyid " + keyid
+          + ". Add it to the " + publicKeyDirectory + " directory as " + keyid + ".key");
+      return verificationChecks;
+    }
+
     // Verify the signature against the signed string.
     try {
-      if (sig.verify(decodedSignature)) {
-        if (keyIdValid) {
-          verificationChecks.add("Message signed correctly.");
-        } else {
-          verificationChecks.add(
-              "Message signed correctly but the keyid in the signature header is not a UUID. This should be the keyid provided by Starling.");
+      byte[] signingString = headers.getBytes();
+      if (publicKey.verify(javaAlgorithm, signingString, decodedSignature)) {
+        verificationChecks.add("Message signed correctly.");
+        if (date != null) {
+          verificationChecks.add(checkForReplay(date, keyid, signingString));
         }
       } else {
         verificationChecks.add("Message signature invalid.");
       }
+    } catch (InvalidKeyException e) {
+      e.printStackTrace();
+      halt(400, "ERROR: The public key for keyid " + keyid + " is " + publicKey.publicKey().getAlgorithm()
+          + ", which can't verify " + algorithm + " signatures.");
     } catch (SignatureException e) {
       e.printStackTrace();
       halt(400, "Error while processing signature, please see server console for more details.");
@@ -192,6 +264,16 @@ public class StarlingMessageSignatureValidator {
     return verificationChecks;
   }
 
+  private static String checkForReplay(Instant date, String keyid, byte[] signingString) {
+    return switch (replayGuard.record(date, keyid, signingString)) {
+      case FIRST -> "Request not seen before.";
+      case REPEATED -> "Replay detected: this request has already been seen, so it would be rejected. "
+          + "Sign each request afresh, with its own Date.";
+      case UNTRACKED -> "Replay check skipped: too many requests dated around " + date
+          + " to remember them all. Increase replayWindowCapacity.";
+    };
+  }
+
   private static String getJavaAlgorithm(String algorithm) throws NoSuchAlgorithmException {
     return switch (algorithm) {
       case "rsa-sha256" -> "SHA256withRSA";
@@ -252,27 +334,17 @@ public class StarlingMessageSignatureValidator {
     }
   }
 
-  private static PublicKey getPublicKey() {
+  private static PublicKeyRegistry getPublicKeys() {
     try {
-      File publicKeyFile = new File(publicKeyPath);
-      System.out.println("Looking for publicKey file in:");
-      System.out.println(publicKeyFile.getAbsolutePath() + "\n");
-
-      byte[] publicKeyBytes = FileUtils.readFileToByteArray(publicKeyFile);
-      String publicKeyContent = new String(publicKeyBytes)
-          .replaceAll("\\n", "")
-          .replace("-----BEGIN PUBLIC KEY-----", "")
-          .replace("-----END PUBLIC KEY-----", "");
-
-      EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(
-          Base64.getMimeDecoder().decode(publicKeyContent));
-      KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+      Path publicKeyDir = Paths.get(publicKeyDirectory);
+      System.out.println("Looking for publicKey files in:");
+      System.out.println(publicKeyDir.toAbsolutePath() + "\n");
 
-      return keyFactory.generatePublic(publicKeySpec);
+      return PublicKeyRegistry.watching(publicKeyDir);
 
     } catch (Exception e) {
       System.err.println(
-          "ERROR: Could not process Public Key, please check pre-configured publicKeyPath.");
+          "ERROR: Could not process Public Keys, please check pre-configured publicKeyDirectory.");
       e.printStackTrace();
     }
     return null;
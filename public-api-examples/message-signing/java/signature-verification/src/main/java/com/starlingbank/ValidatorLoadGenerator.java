@@ -0,0 +1,183 @@
+package com.starlingbank;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load tests a running validator, showing how throughput and latency change with the number of
+ * concurrent clients.
+ * <p>
+ * Registers a new EC key in the validator's key directory, then for each level of concurrency
+ * runs that many clients for a while, each sending signed requests one after another.
+ * Compare the server started with {@code --execution=platform} and {@code --execution=virtual}.
+ * <p>
+ * Usage: java -cp target/StarlingMessageSignatureValidator.jar com.starlingbank.ValidatorLoadGenerator [url] [keyDirectory] [secondsPerLevel] [clients...]
+ */
+public class ValidatorLoadGenerator {
+
+  private static final String PAYLOAD = "{\"externalIdentifier\":\"7cb1a2e1-812a-49dc-9399-84f45acaff26\",\"reference\":\"Load test\",\"amount\":{\"currency\":\"GBP\",\"minorUnits\":1234}}";
+  private static final byte[] PAYLOAD_BYTES = PAYLOAD.getBytes(UTF_8);
+  private static final int[] DEFAULT_CLIENTS = {8, 64, 512, 2_000, 10_000};
+
+  public static void main(String[] args) throws Exception {
+    URI uri = URI.create(args.length > 0 ? args[0] : "http://localhost:30000/api/v2/load-test");
+    Path keyDirectory = Paths.get(args.length > 1 ? args[1] : "keys");
+    Duration perLevel = Duration.ofSeconds(args.length > 2 ? Long.parseLong(args[2]) : 10);
+    int[] clientLevels = args.length > 3
+        ? Arrays.stream(args, 3, args.length).mapToInt(Integer::parseInt).toArray()
+        : DEFAULT_CLIENTS;
+
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+    keyPairGenerator.initialize(256);
+    KeyPair keyPair = keyPairGenerator.generateKeyPair();
+    String keyid = UUID.randomUUID().toString();
+    Path publicKeyFile = keyDirectory.resolve(keyid + ".key");
+    Files.writeString(publicKeyFile, "-----BEGIN PUBLIC KEY-----\n"
+        + Base64.getMimeEncoder().encodeToString(keyPair.getPublic().getEncoded())
+        + "\n-----END PUBLIC KEY-----\n");
+    // Give the validator a moment to notice the new key
+    Thread.sleep(2_000);
+
+    HttpClient client = HttpClient.newBuilder()
+        .version(HttpClient.Version.HTTP_1_1)
+        .executor(Executors.newVirtualThreadPerTaskExecutor())
+        .build();
+    Signer signer = new Signer(keyPair, keyid, uri);
+
+    try {
+      System.out.printf("%10s %10s %12s %10s %10s %8s%n", "clients", "requests", "requests/s", "p50 ms", "p99 ms", "errors");
+      for (int clients : clientLevels) {
+        run(client, signer, clients, perLevel).print(clients);
+      }
+    } finally {
+      Files.deleteIfExists(publicKeyFile);
+    }
+  }
+
+  private static Result run(HttpClient client, Signer signer, int clients, Duration duration) throws Exception {
+    LongAdder errors = new LongAdder();
+    long start = System.nanoTime();
+    long end = start + duration.toNanos();
+
+    List<Future<long[]>> latencies = new ArrayList<>(clients);
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < clients; i++) {
+        latencies.add(executor.submit(() -> {
+          long[] samples = new long[1024];
+          int count = 0;
+          while (System.nanoTime() < end) {
+            long sent = System.nanoTime();
+            try {
+              HttpResponse<Void> response = client.send(signer.signedRequest(), BodyHandlers.discarding());
+              if (response.statusCode() != 200) {
+                errors.increment();
+              }
+            } catch (Exception e) {
+              errors.increment();
+            }
+            if (count == samples.length) {
+              samples = Arrays.copyOf(samples, count * 2);
+            }
+            samples[count++] = System.nanoTime() - sent;
+          }
+          return Arrays.copyOf(samples, count);
+        }));
+      }
+    }
+    long elapsed = System.nanoTime() - start;
+
+    long[] all = latencies.stream().map(ValidatorLoadGenerator::join).flatMapToLong(Arrays::stream).sorted().toArray();
+    return new Result(all, elapsed, errors.sum());
+  }
+
+  private static long[] join(Future<long[]> future) {
+    try {
+      return future.get();
+    } catch (Exception e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private record Result(long[] sortedLatencies, long elapsedNanos, long errors) {
+
+    void print(int clients) {
+      System.out.printf("%10d %10d %12.0f %10.2f %10.2f %8d%n",
+          clients,
+          sortedLatencies.length,
+          sortedLatencies.length / (elapsedNanos / 1e9),
+          percentile(0.50) / 1e6,
+          percentile(0.99) / 1e6,
+          errors);
+    }
+
+    private long percentile(double percentile) {
+      if (sortedLatencies.length == 0) {
+        return 0;
+      }
+      return sortedLatencies[(int) Math.min(sortedLatencies.length - 1, Math.ceil(percentile * sortedLatencies.length) - 1)];
+    }
+  }
+
+  /**
+   * Signs each request afresh, the way a Starling API client would.
+   */
+  private static final class Signer {
+
+    private final KeyPair keyPair;
+    private final String keyid;
+    private final URI uri;
+    private final String digest;
+
+    Signer(KeyPair keyPair, String keyid, URI uri) throws GeneralSecurityException {
+      this.keyPair = keyPair;
+      this.keyid = keyid;
+      this.uri = uri;
+      this.digest = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-512").digest(PAYLOAD_BYTES));
+    }
+
+    HttpRequest signedRequest() throws GeneralSecurityException {
+      String date = DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(ZonedDateTime.now());
+      String textToSign = "(request-target): put " + uri.getRawPath() + "\nDate: " + date + "\nDigest: " + digest;
+
+      Signature signature = Signature.getInstance("SHA256withECDSA");
+      signature.initSign(keyPair.getPrivate());
+      signature.update(textToSign.getBytes(UTF_8));
+      String authorization = "Bearer load-test;Signature keyid=\"" + keyid + "\",algorithm=\"ecdsa-sha256\","
+          + "headers=\"(request-target) Date Digest\",signature=\""
+          + Base64.getEncoder().encodeToString(signature.sign()) + "\"";
+
+      return HttpRequest.newBuilder(uri)
+          .header("Authorization", authorization)
+          .header("Date", date)
+          .header("Digest", digest)
+          .PUT(BodyPublishers.ofByteArray(PAYLOAD_BYTES))
+          .build();
+    }
+  }
+}
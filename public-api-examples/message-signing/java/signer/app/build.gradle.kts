@@ -9,6 +9,9 @@
 plugins {
     // Apply the application plugin to add support for building a CLI application in Java.
     application
+
+    // Runs the JMH benchmarks in src/jmh with `./gradlew jmh`.
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 repositories {
@@ -21,10 +24,20 @@ dependencies {
 
     // Use JUnit Jupiter for testing.
     testImplementation("org.junit.jupiter:junit-jupiter:5.9.1")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 
     // This dependency is used by the application.
     implementation("com.google.guava:guava:31.1-jre")
 }
+sourceSets {
+    main {
+        java {
+            // KeyPairPool is shared with the Payment Services examples in ps-api-examples
+            srcDir("../../../../../common-examples/key-pair-pool/java/src/main/java")
+        }
+    }
+}
+
 java {
     toolchain {
         languageVersion.set(JavaLanguageVersion.of(17))
@@ -36,6 +49,15 @@ application {
     mainClass.set("com.starlingbank.StarlingMessageSigner")
 }
 
+jmh {
+    benchmarkMode.set(listOf("thrpt", "avgt"))
+    timeUnit.set("us")
+    // Reports the allocation rate per operation as gc.alloc.rate.norm
+    profilers.add("gc")
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("results/jmh/results.json"))
+}
+
 tasks.named<Test>("test") {
     // Use JUnit Platform for unit tests.
     useJUnitPlatform()
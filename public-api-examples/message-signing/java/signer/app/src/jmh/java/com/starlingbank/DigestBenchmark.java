@@ -0,0 +1,55 @@
+package com.starlingbank;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of the Digest header for a range of payload sizes, in bytes.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+public class DigestBenchmark {
+
+  @Param({"256", "4096", "65536", "1048576"})
+  public int payloadSize;
+
+  private String payload;
+  private byte[] payloadBytes;
+  private ByteBuffer payloadBuffer;
+
+  @Setup
+  public void setUp() {
+    payload = Payloads.json(payloadSize);
+    payloadBytes = payload.getBytes(UTF_8);
+    payloadBuffer = ByteBuffer.allocateDirect(payloadBytes.length).put(payloadBytes).flip();
+  }
+
+  @Benchmark
+  public String createDigest() {
+    return SignatureUtils.createDigest(payload);
+  }
+
+  @Benchmark
+  public String createDigestFromStream() throws IOException {
+    return SignatureUtils.createDigest(new ByteArrayInputStream(payloadBytes));
+  }
+
+  @Benchmark
+  public String createDigestFromBuffer() {
+    return SignatureUtils.createDigest(payloadBuffer);
+  }
+}
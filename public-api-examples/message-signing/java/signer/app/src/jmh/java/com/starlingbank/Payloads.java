@@ -0,0 +1,35 @@
+package com.starlingbank;
+
+/**
+ * Example request content for the benchmarks.
+ */
+final class Payloads {
+
+  private static final String PAYMENT = "{\"externalIdentifier\":\"7cb1a2e1-812a-49dc-9399-84f45acaff26\",\"destinationPayeeAccountUid\":\"db61037a-c9db-40e9-9507-01e932b114eb\",\"reference\":\"Some reference\",\"amount\":{\"currency\":\"GBP\",\"minorUnits\":1234}}";
+  private static final String REQUEST_TARGET = "put /api/v2/payments/local/account/90d14796-c59f-4944-9146-7fc84deb253c/category/46168325-8d23-4efe-ba48-b3a74f85f23b";
+  private static final String DATE = "2023-03-01T12:00:00.000Z";
+
+  private Payloads() {}
+
+  /**
+   * A JSON array of example payments, padded to exactly the given size.
+   */
+  static String json(int size) {
+    StringBuilder json = new StringBuilder(size).append('[');
+    while (json.length() + PAYMENT.length() + 2 <= size) {
+      json.append(json.length() > 1 ? "," : "").append(PAYMENT);
+    }
+    json.append(']');
+    while (json.length() < size) {
+      json.append(' ');
+    }
+    return json.toString();
+  }
+
+  /**
+   * The text a client would sign to send this payload.
+   */
+  static String textToSign(String payload) {
+    return "(request-target): %s\nDate: %s\nDigest: %s".formatted(REQUEST_TARGET, DATE, SignatureUtils.createDigest(payload));
+  }
+}
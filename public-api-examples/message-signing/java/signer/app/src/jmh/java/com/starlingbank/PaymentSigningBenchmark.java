@@ -0,0 +1,72 @@
+package com.starlingbank;
+
+import com.starlingbank.dto.Account;
+import com.starlingbank.dto.Amount;
+import com.starlingbank.dto.PaymentRequest;
+import java.net.http.HttpRequest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the end to end cost of preparing a signed payment with {@link StarlingApiClient}, from
+ * serialising the payment to building the request with all its headers, for each signing
+ * algorithm. Use this to compare RSA and ECDSA keys for a high volume payment path.
+ * <p>
+ * Run on its own with {@code java -jar app/build/libs/app-jmh.jar PaymentSigningBenchmark}, after
+ * {@code ./gradlew jmhJar}.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+public class PaymentSigningBenchmark {
+
+  private static final String ACCESS_TOKEN = "eyJhbGciOiJQUzI1NiIsInppcCI6IkdaSVAifQ.H4sIAAQ-_pT1TALVKOt8.uLjFJikw--DDv3Pf";
+  private static final UUID KEY_UID = UUID.fromString("aaaaaaaa-aaaa-4aaa-aaaa-aaaaaaaaaaaa");
+  private static final Account SOURCE_ACCOUNT = new Account(
+      UUID.fromString("90d14796-c59f-4944-9146-7fc84deb253c"),
+      UUID.fromString("46168325-8d23-4efe-ba48-b3a74f85f23b"),
+      "PRIMARY",
+      "GBP");
+  private static final PaymentRequest PAYMENT = new PaymentRequest(
+      "7cb1a2e1-812a-49dc-9399-84f45acaff26",
+      UUID.fromString("db61037a-c9db-40e9-9507-01e932b114eb"),
+      "Some reference",
+      new Amount("GBP", 1234));
+
+  /**
+   * A signing algorithm and key size in bits, separated by a colon.
+   */
+  @Param({
+      "RSA_SHA256:2048", "RSA_SHA256:4096",
+      "RSA_SHA512:4096",
+      "ECDSA_SHA256:256",
+      "ECDSA_SHA512:521"
+  })
+  public String algorithmAndKeySize;
+
+  private StarlingApiClient client;
+
+  @Setup
+  public void setUp() throws NoSuchAlgorithmException {
+    String[] parts = algorithmAndKeySize.split(":");
+    SigningAlgorithm signingAlgorithm = SigningAlgorithm.valueOf(parts[0]);
+    client = new StarlingApiClient(ACCESS_TOKEN,
+        SigningBenchmark.generateKeyPair(signingAlgorithm, Integer.parseInt(parts[1])).getPrivate(),
+        KEY_UID, signingAlgorithm, null);
+  }
+
+  @Benchmark
+  public HttpRequest signPayment() {
+    return client.signedPaymentRequest(SOURCE_ACCOUNT, PAYMENT);
+  }
+}
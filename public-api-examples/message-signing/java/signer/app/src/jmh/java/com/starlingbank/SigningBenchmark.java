@@ -0,0 +1,78 @@
+package com.starlingbank;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost of signing a request with each signing algorithm and a range of key sizes.
+ * <p>
+ * Run with {@code ./gradlew jmh}; results are written to {@code app/build/results/jmh/results.json}.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+public class SigningBenchmark {
+
+  private static final String ACCESS_TOKEN = "eyJhbGciOiJQUzI1NiIsInppcCI6IkdaSVAifQ.H4sIAAQ-_pT1TALVKOt8.uLjFJikw--DDv3Pf";
+  private static final UUID KEY_UID = UUID.fromString("aaaaaaaa-aaaa-4aaa-aaaa-aaaaaaaaaaaa");
+
+  /**
+   * A signing algorithm and key size in bits, separated by a colon.
+   */
+  @Param({
+      "RSA_SHA256:2048", "RSA_SHA256:4096",
+      "RSA_SHA512:2048", "RSA_SHA512:4096",
+      "ECDSA_SHA256:256", "ECDSA_SHA256:384",
+      "ECDSA_SHA512:256", "ECDSA_SHA512:521"
+  })
+  public String algorithmAndKeySize;
+
+  private SigningAlgorithm signingAlgorithm;
+  private KeyPair keyPair;
+  private SigningEngine signingEngine;
+  private String textToSign;
+  private String signature;
+
+  @Setup
+  public void setUp() throws NoSuchAlgorithmException {
+    String[] parts = algorithmAndKeySize.split(":");
+    signingAlgorithm = SigningAlgorithm.valueOf(parts[0]);
+    keyPair = generateKeyPair(signingAlgorithm, Integer.parseInt(parts[1]));
+    signingEngine = new SigningEngine(keyPair.getPrivate(), signingAlgorithm);
+    textToSign = Payloads.textToSign(Payloads.json(1024));
+    signature = signingEngine.sign(textToSign);
+  }
+
+  @Benchmark
+  public String sign() {
+    return SignatureUtils.sign(keyPair.getPrivate(), signingAlgorithm, textToSign);
+  }
+
+  @Benchmark
+  public String signWithEngine() {
+    return signingEngine.sign(textToSign);
+  }
+
+  @Benchmark
+  public String createAuthorizationHeader() {
+    return SignatureUtils.createAuthorizationHeader(ACCESS_TOKEN, KEY_UID, signingAlgorithm, signature);
+  }
+
+  static KeyPair generateKeyPair(SigningAlgorithm signingAlgorithm, int keySize) throws NoSuchAlgorithmException {
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(signingAlgorithm.name().startsWith("ECDSA") ? "EC" : "RSA");
+    keyPairGenerator.initialize(keySize);
+    return keyPairGenerator.generateKeyPair();
+  }
+}
@@ -0,0 +1,157 @@
+package com.starlingbank;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * Signs a request and builds its Authorization header, without the intermediate Strings of
+ * formatting the text to sign and the header.
+ * <p>
+ * The text to sign is written straight into a reusable byte buffer and signed from there. The
+ * signature is written into another reusable buffer and Base64 encoded straight into the header,
+ * so the header String is the only object created per request, beyond whatever the signature
+ * provider creates. The header is exactly the same as
+ * {@link SignatureUtils#createAuthorizationHeader} would create for the same signature.
+ * <p>
+ * A builder is reused for every request, so isn't thread safe: use {@link #forThread()}.
+ */
+final class AuthorizationHeaderBuilder {
+
+  private static final ThreadLocal<AuthorizationHeaderBuilder> BUILDERS = ThreadLocal.withInitial(AuthorizationHeaderBuilder::new);
+
+  private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+  // Big enough for an RSA 8192 signature, and any ECDSA one
+  private static final int MAX_SIGNATURE_LENGTH = 1024;
+
+  private byte[] textToSign = new byte[512];
+  private int textLength;
+  private final byte[] signature = new byte[MAX_SIGNATURE_LENGTH];
+  private char[] header = new char[1024];
+  private int headerLength;
+  private UUID keyUid;
+  private String keyUidString;
+
+  private AuthorizationHeaderBuilder() {
+  }
+
+  /**
+   * Gets this thread's builder.
+   */
+  static AuthorizationHeaderBuilder forThread() {
+    return BUILDERS.get();
+  }
+
+  /**
+   * Signs a request and builds its Authorization header.
+   *
+   * @param requestTarget The HTTP method (lowercase), a space, then the endpoint path
+   */
+  String build(SigningEngine signingEngine, String accessToken, UUID keyUid, String requestTarget, String date, String digest) {
+    return build(signingEngine, accessToken, keyUid, null, requestTarget, date, digest);
+  }
+
+  /**
+   * Signs a request and builds its Authorization header.
+   *
+   * @param method The HTTP method, lowercase
+   * @param path The endpoint path
+   */
+  String build(SigningEngine signingEngine, String accessToken, UUID keyUid, String method, String path, String date, String digest) {
+    // "(request-target): %s\nDate: %s\nDigest: %s"
+    textLength = 0;
+    appendText("(request-target): ");
+    if (method != null) {
+      appendText(method);
+      appendText(" ");
+    }
+    appendText(path);
+    appendText("\nDate: ");
+    appendText(date);
+    appendText("\nDigest: ");
+    appendText(digest);
+    int signatureLength = signingEngine.signBytes(textToSign, 0, textLength, signature);
+
+    // "Bearer %s;Signature keyid=\"%s\",algorithm=\"%s\",headers=\"(request-target) Date Digest\",signature=\"%s\""
+    headerLength = 0;
+    appendHeader("Bearer ");
+    appendHeader(accessToken);
+    appendHeader(";Signature keyid=\"");
+    appendHeader(keyUidString(keyUid));
+    appendHeader("\",algorithm=\"");
+    appendHeader(signingEngine.signingAlgorithm().starlingName());
+    appendHeader("\",headers=\"(request-target) Date Digest\",signature=\"");
+    appendBase64(signature, signatureLength);
+    appendHeader("\"");
+    return new String(header, 0, headerLength);
+  }
+
+  /**
+   * Appends bytes to the header Base64 encoded, exactly as {@link Base64#getEncoder()} would.
+   */
+  private void appendBase64(byte[] bytes, int length) {
+    ensureHeaderCapacity((length + 2) / 3 * 4);
+    int i = 0;
+    for (; i + 3 <= length; i += 3) {
+      int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+      header[headerLength++] = BASE64[bits >>> 18];
+      header[headerLength++] = BASE64[(bits >>> 12) & 0x3f];
+      header[headerLength++] = BASE64[(bits >>> 6) & 0x3f];
+      header[headerLength++] = BASE64[bits & 0x3f];
+    }
+    if (i < length) {
+      int bits = (bytes[i] & 0xff) << 16 | (i + 1 < length ? (bytes[i + 1] & 0xff) << 8 : 0);
+      header[headerLength++] = BASE64[bits >>> 18];
+      header[headerLength++] = BASE64[(bits >>> 12) & 0x3f];
+      header[headerLength++] = i + 1 < length ? BASE64[(bits >>> 6) & 0x3f] : '=';
+      header[headerLength++] = '=';
+    }
+  }
+
+  private String keyUidString(UUID keyUid) {
+    // Clients sign with the same key over and over, so only render it once
+    if (!keyUid.equals(this.keyUid)) {
+      this.keyUid = keyUid;
+      this.keyUidString = keyUid.toString();
+    }
+    return keyUidString;
+  }
+
+  private void appendText(String text) {
+    int length = text.length();
+    if (textLength + length > textToSign.length) {
+      textToSign = Arrays.copyOf(textToSign, Math.max(textToSign.length * 2, textLength + length));
+    }
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (c >= 0x80) {
+        // Not ASCII, so let the JDK encode the rest
+        appendText(text.substring(i).getBytes(UTF_8));
+        return;
+      }
+      textToSign[textLength++] = (byte) c;
+    }
+  }
+
+  private void appendText(byte[] bytes) {
+    if (textLength + bytes.length > textToSign.length) {
+      textToSign = Arrays.copyOf(textToSign, Math.max(textToSign.length * 2, textLength + bytes.length));
+    }
+    System.arraycopy(bytes, 0, textToSign, textLength, bytes.length);
+    textLength += bytes.length;
+  }
+
+  private void appendHeader(String text) {
+    ensureHeaderCapacity(text.length());
+    text.getChars(0, text.length(), header, headerLength);
+    headerLength += text.length();
+  }
+
+  private void ensureHeaderCapacity(int extra) {
+    if (headerLength + extra > header.length) {
+      header = Arrays.copyOf(header, Math.max(header.length * 2, headerLength + extra));
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package com.starlingbank;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.starlingbank.dto.SigningRequest;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Signs a batch of requests in one go, reading them as JSON Lines and writing the headers for each
+ * as a line of JSON.
+ * <p>
+ * Each input line is a JSON object with a {@code requestTarget}, {@code payload} and optionally an
+ * {@code algorithm}. Each output line is a JSON object of the headers to send with the request on
+ * the same input line, or an {@code error} if it couldn't be signed.
+ * <p>
+ * Requests are signed in parallel on every core. Output stays in input order, because results are
+ * written from a queue of pending signatures, oldest first. The queue is bounded, so a batch of any
+ * size is signed in a fixed amount of memory.
+ */
+class BatchSigner {
+
+  // Headers are full of = and quotes, which are clearer left unescaped
+  private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+  // Enough pending signatures to keep every thread busy while the oldest is written out
+  private static final int PENDING_PER_THREAD = 64;
+
+  private final RequestSigner requestSigner;
+  private final int threads;
+
+  BatchSigner(RequestSigner requestSigner, int threads) {
+    this.requestSigner = requestSigner;
+    this.threads = threads;
+  }
+
+  /**
+   * Signs every line read, writing a line of headers for each. The output isn't closed.
+   */
+  void signAll(BufferedReader in, Writer out) throws IOException, InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      Queue<Future<String>> pending = new ArrayDeque<>();
+      String line;
+      while ((line = in.readLine()) != null) {
+        String request = line;
+        pending.add(executor.submit(() -> signLine(request)));
+        if (pending.size() >= threads * PENDING_PER_THREAD) {
+          write(pending.remove(), out);
+        }
+      }
+      while (!pending.isEmpty()) {
+        write(pending.remove(), out);
+      }
+      out.flush();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private String signLine(String line) {
+    if (line.isBlank()) {
+      // Keep output lines in step with input lines
+      return "";
+    }
+    Map<String, String> headers;
+    try {
+      headers = requestSigner.sign(GSON.fromJson(line, SigningRequest.class));
+    } catch (JsonParseException | IllegalArgumentException e) {
+      headers = Map.of("error", String.valueOf(e.getMessage()));
+    }
+    return GSON.toJson(headers);
+  }
+
+  private static void write(Future<String> signed, Writer out) throws IOException, InterruptedException {
+    try {
+      out.write(signed.get());
+      out.write('\n');
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package com.starlingbank;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gson.Gson;
+import java.io.Writer;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.util.Arrays;
+
+/**
+ * A JSON request body, serialised straight into UTF-8 bytes in one pass. The digest is taken over
+ * those bytes, and they're sent without being copied, so the bytes hashed are exactly the bytes
+ * sent, and the JSON is never held as a String and encoded again.
+ * <p>
+ * Each body has a buffer of its own, rather than sharing one, because {@link java.net.http.HttpClient}
+ * only reads it when it sends the request, which for async requests is after the body was built.
+ */
+final class JsonBody {
+
+  private static final int MIN_CAPACITY = 256;
+
+  // Payloads in a run tend to be a similar size, so start each buffer big enough for the last one
+  private static volatile int sizeHint = MIN_CAPACITY;
+
+  private final byte[] bytes;
+  private final int length;
+
+  private JsonBody(byte[] bytes, int length) {
+    this.bytes = bytes;
+    this.length = length;
+  }
+
+  /**
+   * Serialises a value to JSON.
+   */
+  static JsonBody of(Gson gson, Object value) {
+    Utf8Writer writer = new Utf8Writer(sizeHint);
+    gson.toJson(value, writer);
+    writer.close();
+    sizeHint = Math.max(MIN_CAPACITY, writer.count + (writer.count >> 3));
+    return new JsonBody(writer.buffer, writer.count);
+  }
+
+  /**
+   * Creates a Base64 SHA-512 digest of the body.
+   */
+  String digest(SigningEngine signingEngine) {
+    return signingEngine.createDigest(bytes, 0, length);
+  }
+
+  /**
+   * Publishes the body to the request, straight from the buffer it was serialised into.
+   */
+  BodyPublisher publisher() {
+    return BodyPublishers.ofByteArray(bytes, 0, length);
+  }
+
+  int length() {
+    return length;
+  }
+
+  @Override
+  public String toString() {
+    return new String(bytes, 0, length, UTF_8);
+  }
+
+  /**
+   * Encodes chars to UTF-8 straight into a growable byte buffer, exactly as {@link String#getBytes}
+   * would, without the intermediate char and byte buffers of an {@link java.io.OutputStreamWriter}.
+   */
+  private static final class Utf8Writer extends Writer {
+
+    private byte[] buffer;
+    private int count;
+    // The first half of a surrogate pair, waiting for the second
+    private char highSurrogate;
+
+    Utf8Writer(int capacity) {
+      buffer = new byte[capacity];
+    }
+
+    @Override
+    public void write(int c) {
+      writeChar((char) c);
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+      ensureCapacity(length);
+      for (int i = offset; i < offset + length; i++) {
+        writeChar(chars[i]);
+      }
+    }
+
+    @Override
+    public void write(String text, int offset, int length) {
+      ensureCapacity(length);
+      for (int i = offset; i < offset + length; i++) {
+        writeChar(text.charAt(i));
+      }
+    }
+
+    private void writeChar(char c) {
+      if (c < 0x80 && highSurrogate == 0) {
+        // Nearly all JSON is ASCII
+        if (count == buffer.length) {
+          ensureCapacity(1);
+        }
+        buffer[count++] = (byte) c;
+        return;
+      }
+      ensureCapacity(4);
+      if (highSurrogate != 0) {
+        char high = highSurrogate;
+        highSurrogate = 0;
+        if (Character.isLowSurrogate(c)) {
+          int codePoint = Character.toCodePoint(high, c);
+          buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+          buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+          buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+          buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+          return;
+        }
+        // A lone high surrogate, which the JDK encodes as '?'
+        buffer[count++] = '?';
+        writeChar(c);
+      } else if (c < 0x800) {
+        buffer[count++] = (byte) (0xc0 | (c >> 6));
+        buffer[count++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c)) {
+        highSurrogate = c;
+      } else if (Character.isLowSurrogate(c)) {
+        buffer[count++] = '?';
+      } else {
+        buffer[count++] = (byte) (0xe0 | (c >> 12));
+        buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buffer[count++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+
+    private void ensureCapacity(int extra) {
+      if (count + extra > buffer.length) {
+        buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + extra));
+      }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+      if (highSurrogate != 0) {
+        highSurrogate = 0;
+        ensureCapacity(1);
+        buffer[count++] = '?';
+      }
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package com.starlingbank;
+
+import java.util.Arrays;
+import java.util.OptionalLong;
+
+/**
+ * Keeps the most recent latencies seen from one endpoint, to estimate percentiles from.
+ * <p>
+ * Only a fixed window of the latest latencies is kept, so percentiles follow the endpoint as it
+ * speeds up or slows down, and there are no percentiles until enough latencies have been seen to
+ * be worth trusting. A sorted copy of the window is kept up to date as latencies are recorded, so
+ * a percentile, which every request asks for, is a lookup rather than a sort.
+ */
+class LatencyTracker {
+
+  static final int MIN_SAMPLES = 20;
+
+  private final long[] window;
+  private final long[] sorted;
+  private int next;
+  private int size;
+
+  LatencyTracker(int windowSize) {
+    if (windowSize < MIN_SAMPLES) {
+      throw new IllegalArgumentException("windowSize must be at least " + MIN_SAMPLES + " but was " + windowSize);
+    }
+    this.window = new long[windowSize];
+    this.sorted = new long[windowSize];
+  }
+
+  synchronized void record(long latencyNanos) {
+    if (size == window.length) {
+      // The oldest latency drops out of the window
+      int evicted = Arrays.binarySearch(sorted, 0, size, window[next]);
+      System.arraycopy(sorted, evicted + 1, sorted, evicted, size - evicted - 1);
+      size--;
+    }
+    window[next] = latencyNanos;
+    next = (next + 1) % window.length;
+
+    int insertAt = Arrays.binarySearch(sorted, 0, size, latencyNanos);
+    if (insertAt < 0) {
+      insertAt = -insertAt - 1;
+    }
+    System.arraycopy(sorted, insertAt, sorted, insertAt + 1, size - insertAt);
+    sorted[insertAt] = latencyNanos;
+    size++;
+  }
+
+  /**
+   * Gets a percentile of the recent latencies, by the nearest rank.
+   *
+   * @param percentile Percentile, from 0 to 100
+   * @return Latency in nanoseconds, or empty if too few have been seen yet
+   */
+  synchronized OptionalLong percentile(double percentile) {
+    if (size < MIN_SAMPLES) {
+      return OptionalLong.empty();
+    }
+    int rank = (int) Math.ceil(percentile / 100 * size);
+    return OptionalLong.of(sorted[Math.max(0, Math.min(rank, size) - 1)]);
+  }
+}
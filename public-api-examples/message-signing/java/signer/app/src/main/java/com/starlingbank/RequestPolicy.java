@@ -0,0 +1,115 @@
+package com.starlingbank;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+
+/**
+ * How long {@link StarlingApiClient} waits for each endpoint, whether it hedges slow reads, and how
+ * often it retries.
+ * <p>
+ * Each endpoint's timeout is {@code timeoutMultiplier} times its latency target, or times the
+ * {@code timeoutPercentile} of its recent latencies once it's slower than that. However slow it
+ * gets, the timeout never grows past {@code maxTimeoutMultiplier} times the latency target, or
+ * {@code maxTimeout}. So a response that meets the target never times out, and an endpoint that's
+ * slower than its target still gets time to answer, but a stalled request doesn't hold things up.
+ * Requests that time out, and hedged requests cancelled once the other responded, count towards
+ * the percentiles at the time they gave up after, as their latency was at least that. Leaving
+ * them out would keep only the fast responses, and the percentiles would fall just as the
+ * endpoint slows down.
+ *
+ * @param connectTimeout How long to wait to connect
+ * @param latencyTargets How quickly each endpoint should respond, by the endpoint's path template
+ * @param defaultLatencyTarget How quickly any other endpoint should respond
+ * @param timeoutPercentile The percentile of recent latencies timeouts are based on, from 0 to 100
+ * @param timeoutMultiplier How many times the latency target or percentile to wait
+ * @param maxTimeoutMultiplier The most times its latency target to ever wait for an endpoint
+ * @param maxTimeout The longest to ever wait for a response
+ * @param hedgePercentile The percentile of recent latencies after which a GET is hedged with a second
+ *     one, or 0 not to hedge. PUTs are never hedged.
+ * @param maxRetries The most times to retry a request that's safe to retry, after a timeout, a
+ *     connection failure or a 502, 503 or 504
+ */
+record RequestPolicy(
+    Duration connectTimeout,
+    Map<String, Duration> latencyTargets,
+    Duration defaultLatencyTarget,
+    double timeoutPercentile,
+    double timeoutMultiplier,
+    double maxTimeoutMultiplier,
+    Duration maxTimeout,
+    double hedgePercentile,
+    int maxRetries
+) {
+
+  static final RequestPolicy DEFAULT = new RequestPolicy(
+      Duration.ofSeconds(5),
+      Map.of(
+          StarlingApiClient.ACCOUNTS_ENDPOINT, Duration.ofMillis(500),
+          StarlingApiClient.PAYEES_ENDPOINT, Duration.ofMillis(500),
+          StarlingApiClient.PAY_LOCAL_ENDPOINT, Duration.ofSeconds(2)),
+      Duration.ofSeconds(1),
+      99,
+      3,
+      10,
+      Duration.ofSeconds(30),
+      0,
+      2);
+
+  RequestPolicy {
+    latencyTargets = Map.copyOf(latencyTargets);
+    if (timeoutPercentile <= 0 || timeoutPercentile > 100) {
+      throw new IllegalArgumentException("timeoutPercentile must be from 0 to 100 but was " + timeoutPercentile);
+    }
+    if (hedgePercentile < 0 || hedgePercentile > 100) {
+      throw new IllegalArgumentException("hedgePercentile must be from 0 to 100 but was " + hedgePercentile);
+    }
+    if (timeoutMultiplier < 1) {
+      throw new IllegalArgumentException("timeoutMultiplier must be at least 1 but was " + timeoutMultiplier);
+    }
+    if (maxTimeoutMultiplier < timeoutMultiplier) {
+      throw new IllegalArgumentException("maxTimeoutMultiplier must be at least timeoutMultiplier but was " + maxTimeoutMultiplier);
+    }
+    if (maxRetries < 0) {
+      throw new IllegalArgumentException("maxRetries must not be negative but was " + maxRetries);
+    }
+  }
+
+  /**
+   * Gets a copy of this policy that hedges GETs slower than a percentile of recent latencies.
+   */
+  RequestPolicy withHedging(double hedgePercentile) {
+    return new RequestPolicy(connectTimeout, latencyTargets, defaultLatencyTarget, timeoutPercentile,
+        timeoutMultiplier, maxTimeoutMultiplier, maxTimeout, hedgePercentile, maxRetries);
+  }
+
+  /**
+   * Gets the timeout for the next request to an endpoint.
+   */
+  Duration timeout(String endpoint, LatencyTracker latencies) {
+    long target = latencyTarget(endpoint).toNanos();
+    long expected = target;
+    OptionalLong observed = latencies.percentile(timeoutPercentile);
+    if (observed.isPresent()) {
+      expected = Math.max(expected, observed.getAsLong());
+    }
+    long timeout = Math.min((long) (expected * timeoutMultiplier), (long) (target * maxTimeoutMultiplier));
+    return Duration.ofNanos(Math.min(timeout, maxTimeout.toNanos()));
+  }
+
+  /**
+   * Gets how long to wait for a GET to an endpoint before hedging it, or empty not to hedge it.
+   */
+  Optional<Duration> hedgeDelay(String endpoint, LatencyTracker latencies) {
+    if (hedgePercentile == 0) {
+      return Optional.empty();
+    }
+    OptionalLong observed = latencies.percentile(hedgePercentile);
+    return Optional.of(observed.isPresent() ? Duration.ofNanos(observed.getAsLong()) : latencyTarget(endpoint));
+  }
+
+  private Duration latencyTarget(String endpoint) {
+    return latencyTargets.getOrDefault(endpoint, defaultLatencyTarget);
+  }
+}
@@ -0,0 +1,265 @@
+package com.starlingbank;
+
+import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
+
+import java.lang.ref.WeakReference;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces requests made with one access token, so everything using the token shares its rate limit
+ * rather than each thread finding it on its own.
+ * <p>
+ * Requests wait their turn in a queue, and are let through by a token bucket at the current rate.
+ * The rate adapts to what the API allows: it's halved when a request is throttled with a 429, and
+ * every response that isn't throttled adds to it, so over a second at the current rate it grows
+ * by one request per second. Any {@code Retry-After} pauses every request until then. So a bulk job
+ * settles at just under its quota, rather than bursting over it and then sitting idle.
+ */
+class RequestScheduler {
+
+  static final double DEFAULT_INITIAL_RATE = 20;
+  static final double DEFAULT_MIN_RATE = 0.5;
+  static final double DEFAULT_MAX_RATE = 100;
+
+  private static final double ADDITIVE_INCREASE = 1;
+  private static final double MULTIPLICATIVE_DECREASE = 0.5;
+  // Requests are let through evenly, with at most this long's worth at once
+  private static final double BURST_SECONDS = 0.1;
+
+  // Keyed by a digest of the access token, so the token itself isn't kept, and held weakly, so a
+  // scheduler is dropped once no client is using it. Guarded by itself.
+  private static final Map<String, WeakReference<RequestScheduler>> BY_ACCESS_TOKEN = new HashMap<>();
+
+  private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "request-scheduler");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final double minRate;
+  private final double maxRate;
+  private final Queue<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+
+  // All guarded by this
+  private double rate;
+  private double tokens;
+  private long refilledAt;
+  private long pausedUntil;
+  private long decreasedAt;
+  private ScheduledFuture<?> wakeUp;
+
+  RequestScheduler(double initialRate, double minRate, double maxRate) {
+    if (minRate <= 0 || initialRate < minRate || maxRate < initialRate) {
+      throw new IllegalArgumentException("Rates must be 0 < minRate <= initialRate <= maxRate but were "
+          + minRate + ", " + initialRate + " and " + maxRate);
+    }
+    this.minRate = minRate;
+    this.maxRate = maxRate;
+    this.rate = initialRate;
+    this.tokens = 1;
+    this.refilledAt = System.nanoTime();
+    this.pausedUntil = refilledAt;
+    this.decreasedAt = refilledAt;
+  }
+
+  /**
+   * Gets the scheduler shared by everything using an access token, creating it with the default
+   * rates the first time.
+   */
+  static RequestScheduler forAccessToken(String accessToken) {
+    String key = SignatureUtils.createDigest(accessToken);
+    synchronized (BY_ACCESS_TOKEN) {
+      // Only done as clients are created, so sweeping for schedulers no longer in use is cheap enough
+      BY_ACCESS_TOKEN.values().removeIf(ref -> ref.get() == null);
+      RequestScheduler scheduler = sharedFor(key);
+      if (scheduler == null) {
+        scheduler = new RequestScheduler(DEFAULT_INITIAL_RATE, DEFAULT_MIN_RATE, DEFAULT_MAX_RATE);
+        BY_ACCESS_TOKEN.put(key, new WeakReference<>(scheduler));
+      }
+      return scheduler;
+    }
+  }
+
+  /**
+   * Moves a scheduler from an access token to the token refreshing it, as both are for the same
+   * customer and so the same quota, so the rate learned carries on. A scheduler that wasn't
+   * shared under the previous token, e.g. one passed to a client, stays as it is.
+   *
+   * @return The scheduler for the refreshed token
+   */
+  static RequestScheduler refreshAccessToken(RequestScheduler scheduler, String previousToken, String accessToken) {
+    String previousKey = SignatureUtils.createDigest(previousToken);
+    String key = SignatureUtils.createDigest(accessToken);
+    synchronized (BY_ACCESS_TOKEN) {
+      if (sharedFor(previousKey) != scheduler) {
+        return scheduler;
+      }
+      RequestScheduler existing = sharedFor(key);
+      if (existing != null) {
+        // Something already uses the refreshed token, so share its scheduler rather than split the quota
+        return existing;
+      }
+      BY_ACCESS_TOKEN.put(key, BY_ACCESS_TOKEN.remove(previousKey));
+      return scheduler;
+    }
+  }
+
+  private static RequestScheduler sharedFor(String key) {
+    WeakReference<RequestScheduler> ref = BY_ACCESS_TOKEN.get(key);
+    return ref == null ? null : ref.get();
+  }
+
+  /**
+   * Waits for a turn to send a request, in order with every other request sharing this scheduler.
+   *
+   * @return A future that completes when it's this request's turn, which can be cancelled to give up
+   *     the place in the queue
+   */
+  CompletableFuture<Void> acquire() {
+    CompletableFuture<Void> turn = new CompletableFuture<>();
+    synchronized (this) {
+      waiting.add(turn);
+    }
+    release();
+    return turn;
+  }
+
+  /**
+   * Takes a turn only if one is free now and nothing is queued, for a request that's only worth
+   * sending straight away.
+   */
+  synchronized boolean tryAcquire() {
+    long now = System.nanoTime();
+    refill(now);
+    if (waiting.isEmpty() && now >= pausedUntil && tokens >= 1) {
+      tokens--;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Records a response that wasn't throttled, speeding up a little.
+   */
+  synchronized void succeeded() {
+    rate = Math.min(maxRate, rate + ADDITIVE_INCREASE / rate);
+  }
+
+  /**
+   * Records a request that was throttled, slowing down.
+   *
+   * @param sentAt When the request was sent, from {@link System#nanoTime()}
+   * @param retryAfter How long the API asked us to wait before trying again, or zero
+   */
+  void throttled(long sentAt, Duration retryAfter) {
+    synchronized (this) {
+      long now = System.nanoTime();
+      // Requests sent before the last slow down were sent too fast for the old rate, not the new one
+      if (sentAt - decreasedAt >= 0) {
+        rate = Math.max(minRate, rate * MULTIPLICATIVE_DECREASE);
+        tokens = Math.min(tokens, 0);
+        decreasedAt = now;
+      }
+      if (retryAfter.isNegative() || retryAfter.isZero()) {
+        return;
+      }
+      pausedUntil = Math.max(pausedUntil, now + retryAfter.toNanos());
+      if (wakeUp != null) {
+        // Woken too soon now, and will be scheduled again for the end of the pause
+        wakeUp.cancel(false);
+        wakeUp = null;
+      }
+    }
+    release();
+  }
+
+  /**
+   * Gets the number of requests waiting for a turn.
+   */
+  synchronized int queueDepth() {
+    return waiting.size();
+  }
+
+  /**
+   * Gets the number of requests per second currently let through.
+   */
+  synchronized double currentRate() {
+    return rate;
+  }
+
+  /**
+   * Parses a {@code Retry-After} header, which is either a number of seconds or an HTTP date.
+   *
+   * @return How long to wait, or zero if the header is missing or can't be parsed
+   */
+  static Duration parseRetryAfter(String retryAfter) {
+    if (retryAfter == null) {
+      return Duration.ZERO;
+    }
+    try {
+      return Duration.ofSeconds(Math.max(0, Long.parseLong(retryAfter.trim())));
+    } catch (NumberFormatException e) {
+      // Not a number of seconds, so should be a date
+    }
+    try {
+      Duration wait = Duration.between(ZonedDateTime.now(), ZonedDateTime.parse(retryAfter.trim(), RFC_1123_DATE_TIME));
+      return wait.isNegative() ? Duration.ZERO : wait;
+    } catch (DateTimeParseException e) {
+      return Duration.ZERO;
+    }
+  }
+
+  /**
+   * Lets through as many waiting requests as there are tokens for, and sets a timer for when the
+   * next will be ready.
+   */
+  private void release() {
+    List<CompletableFuture<Void>> released = new ArrayList<>();
+    synchronized (this) {
+      long now = System.nanoTime();
+      refill(now);
+      while (!waiting.isEmpty() && now >= pausedUntil && tokens >= 1) {
+        CompletableFuture<Void> turn = waiting.remove();
+        if (!turn.isDone()) {
+          // Not cancelled, so it uses a token
+          tokens--;
+          released.add(turn);
+        }
+      }
+      if (!waiting.isEmpty() && wakeUp == null) {
+        long delay = now < pausedUntil ? pausedUntil - now : (long) Math.ceil((1 - tokens) / rate * 1e9);
+        wakeUp = TIMER.schedule(this::wakeUp, delay, TimeUnit.NANOSECONDS);
+      }
+    }
+    // Completed off the timer thread and outside the lock, as requests are signed and sent from here
+    for (CompletableFuture<Void> turn : released) {
+      turn.completeAsync(() -> null);
+    }
+  }
+
+  private void wakeUp() {
+    synchronized (this) {
+      wakeUp = null;
+    }
+    release();
+  }
+
+  private void refill(long now) {
+    double capacity = Math.max(1, rate * BURST_SECONDS);
+    tokens = Math.min(capacity, tokens + (now - refilledAt) / 1e9 * rate);
+    refilledAt = now;
+  }
+}
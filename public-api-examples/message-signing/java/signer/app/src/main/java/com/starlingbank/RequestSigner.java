@@ -0,0 +1,79 @@
+package com.starlingbank;
+
+import static java.time.format.DateTimeFormatter.ISO_OFFSET_DATE_TIME;
+
+import com.starlingbank.dto.SigningRequest;
+import java.time.ZonedDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Produces the headers that sign a request to Starling with one API key.
+ */
+class RequestSigner {
+
+  private final String accessToken;
+  private final UUID apiKeyUid;
+  private final SigningEngine signingEngine;
+  private final Map<SigningAlgorithm, RequestSigner> otherAlgorithms = new ConcurrentHashMap<>();
+
+  RequestSigner(String accessToken, UUID apiKeyUid, SigningEngine signingEngine) {
+    this.accessToken = accessToken;
+    this.apiKeyUid = apiKeyUid;
+    this.signingEngine = signingEngine;
+  }
+
+  SigningAlgorithm signingAlgorithm() {
+    return signingEngine.signingAlgorithm();
+  }
+
+  /**
+   * Gets a signer for the same key, but another algorithm. Each is only set up once.
+   *
+   * @throws IllegalArgumentException if the key can't sign with that algorithm
+   */
+  RequestSigner forAlgorithm(SigningAlgorithm signingAlgorithm) {
+    if (signingAlgorithm == signingAlgorithm()) {
+      return this;
+    }
+    return otherAlgorithms.computeIfAbsent(signingAlgorithm,
+        algorithm -> new RequestSigner(accessToken, apiKeyUid, signingEngine.withAlgorithm(algorithm)));
+  }
+
+  /**
+   * Signs a request, with its own algorithm if it has one.
+   *
+   * @throws IllegalArgumentException if the request has no target, or an algorithm the key can't sign with
+   */
+  Map<String, String> sign(SigningRequest request) {
+    if (request == null || request.requestTarget() == null) {
+      throw new IllegalArgumentException("Each request needs a requestTarget, e.g. \"put /api/v2/...\"");
+    }
+    RequestSigner signer = request.algorithm() == null ? this : forAlgorithm(SigningAlgorithm.valueOf(request.algorithm()));
+    return signer.sign(request.requestTarget(), request.payload() == null ? "" : request.payload());
+  }
+
+  /**
+   * Signs a request, dated now.
+   *
+   * @param requestTarget The HTTP method (lowercase), a space, then the endpoint path
+   * @param payload The raw request body, exactly as it will be sent
+   * @return The Authorization, Digest and Date headers to send with the request, in that order
+   */
+  Map<String, String> sign(String requestTarget, String payload) {
+    String date = ISO_OFFSET_DATE_TIME.format(ZonedDateTime.now());
+    String digest = signingEngine.createDigest(payload);
+
+    // Sign the text and create the authorization header, without building either as a String first
+    String authorizationHeader = AuthorizationHeaderBuilder.forThread()
+        .build(signingEngine, accessToken, apiKeyUid, requestTarget, date, digest);
+
+    Map<String, String> headers = new LinkedHashMap<>();
+    headers.put("Authorization", authorizationHeader);
+    headers.put("Digest", digest);
+    headers.put("Date", date);
+    return headers;
+  }
+}
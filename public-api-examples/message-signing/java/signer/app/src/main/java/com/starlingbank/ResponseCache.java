@@ -0,0 +1,171 @@
+package com.starlingbank;
+
+import com.starlingbank.StarlingApiClient.RequestFailureException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+
+/**
+ * A cache of lookups made by {@link StarlingApiClient}, so that repeated lookups within the TTL
+ * are served from memory without a request to Starling.
+ * <p>
+ * Threads that miss on the same key at the same time share a single load. Once an entry expires,
+ * it is revalidated with the ETag it was loaded with, if there was one, so an unchanged resource
+ * costs a 304 rather than a full response. Once the cache holds a tenth more than
+ * {@code maxEntries} keys, the least recently used are evicted, back down to {@code maxEntries}.
+ * Lookups still loading are never evicted.
+ */
+class ResponseCache {
+
+  private final long ttlNanos;
+  private final int maxEntries;
+  // Evicting a batch at a time keeps the scan for the least recently used off most misses
+  private final int evictAbove;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final AtomicBoolean evicting = new AtomicBoolean();
+
+  ResponseCache(Duration ttl, int maxEntries) {
+    if (ttl.isNegative() || ttl.isZero()) {
+      throw new IllegalArgumentException("ttl must be positive but was " + ttl);
+    }
+    if (maxEntries < 1) {
+      throw new IllegalArgumentException("maxEntries must be at least 1 but was " + maxEntries);
+    }
+    this.ttlNanos = ttl.toNanos();
+    this.maxEntries = maxEntries;
+    this.evictAbove = maxEntries + Math.max(1, maxEntries / 10);
+  }
+
+  /**
+   * Gets a value from the cache, loading it if it is missing or has expired.
+   *
+   * @param key Identifies the lookup
+   * @param loader Loads the value, given what was cached before (or null if nothing was)
+   * @return The cached or freshly loaded value
+   */
+  <T> T get(String key, Loader<T> loader) throws RequestFailureException {
+    return get(key, loader, value -> true);
+  }
+
+  /**
+   * Gets a value from the cache, loading it if it is missing or has expired, and only keeping what's
+   * loaded if it should be, e.g. so a lookup that found nothing is tried again next time. Threads
+   * already waiting on the load still get the value.
+   *
+   * @param key Identifies the lookup
+   * @param loader Loads the value, given what was cached before (or null if nothing was)
+   * @param keep Whether a loaded value should be cached
+   * @return The cached or freshly loaded value
+   */
+  @SuppressWarnings("unchecked")
+  <T> T get(String key, Loader<T> loader, Predicate<T> keep) throws RequestFailureException {
+    while (true) {
+      long now = System.nanoTime();
+      Entry current = entries.get(key);
+      if (current != null && (!current.value.isDone() || current.isFresh(now))) {
+        current.lastAccessed = now;
+        return (T) await(current).value();
+      }
+
+      Entry replacement = new Entry(now);
+      boolean claimed = current == null
+          ? entries.putIfAbsent(key, replacement) == null
+          : entries.replace(key, current, replacement);
+      if (!claimed) {
+        // Another thread got there first, so use its load instead
+        continue;
+      }
+      evictIfFull();
+
+      Validated<T> previous = current == null || current.value.isCompletedExceptionally()
+          ? null
+          : (Validated<T>) current.value.getNow(null);
+      try {
+        Validated<T> loaded = loader.load(previous);
+        if (!keep.test(loaded.value())) {
+          // Only this load's entry, as another thread may have claimed the key since
+          entries.remove(key, replacement);
+        }
+        replacement.expiresAt = System.nanoTime() + ttlNanos;
+        replacement.value.complete(loaded);
+        return loaded.value();
+      } catch (Throwable t) {
+        // Errors too, or every later lookup of the key would wait forever for this load
+        entries.remove(key, replacement);
+        replacement.value.completeExceptionally(t);
+        throw t;
+      }
+    }
+  }
+
+  /**
+   * Removes every lookup, so subsequent requests go to Starling.
+   */
+  void invalidateAll() {
+    entries.clear();
+  }
+
+  private static Validated<?> await(Entry entry) throws RequestFailureException {
+    try {
+      return entry.value.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RequestFailureException rfe) {
+        throw rfe;
+      }
+      throw e;
+    }
+  }
+
+  private void evictIfFull() {
+    if (entries.size() <= evictAbove || !evicting.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      int excess = entries.size() - maxEntries;
+      List<Map.Entry<String, Entry>> eldest = new ArrayList<>();
+      for (Map.Entry<String, Entry> candidate : entries.entrySet()) {
+        if (candidate.getValue().value.isDone()) {
+          eldest.add(candidate);
+        }
+      }
+      eldest.sort((a, b) -> Long.signum(a.getValue().lastAccessed - b.getValue().lastAccessed));
+      for (Map.Entry<String, Entry> entry : eldest.subList(0, Math.min(excess, eldest.size()))) {
+        entries.remove(entry.getKey(), entry.getValue());
+      }
+    } finally {
+      evicting.set(false);
+    }
+  }
+
+  /**
+   * A loaded value, with the ETag of the response it came from if there was one.
+   */
+  record Validated<T>(T value, String etag) {}
+
+  @FunctionalInterface
+  interface Loader<T> {
+
+    Validated<T> load(Validated<T> previous) throws RequestFailureException;
+  }
+
+  private static class Entry {
+
+    private final CompletableFuture<Validated<?>> value = new CompletableFuture<>();
+    private volatile long expiresAt;
+    private volatile long lastAccessed;
+
+    Entry(long now) {
+      this.lastAccessed = now;
+    }
+
+    boolean isFresh(long now) {
+      return value.isDone() && !value.isCompletedExceptionally() && expiresAt - now > 0;
+    }
+  }
+}
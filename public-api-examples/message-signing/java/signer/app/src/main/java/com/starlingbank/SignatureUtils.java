@@ -1,5 +1,15 @@
 package com.starlingbank;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -9,6 +19,22 @@ import java.util.UUID;
 
 class SignatureUtils {
 
+  // Payloads are hashed this many bytes at a time, whatever their total size
+  private static final int CHUNK_SIZE = 64 * 1024;
+  // Files are mapped a window at a time, so huge files don't need a huge mapping
+  private static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+
+  private static final ThreadLocal<byte[]> CHUNKS = ThreadLocal.withInitial(() -> new byte[CHUNK_SIZE]);
+
+  // MessageDigest#digest() resets the instance, so each thread can keep reusing its own
+  private static final ThreadLocal<MessageDigest> SHA_512 = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA-512");
+    } catch (NoSuchAlgorithmException nsae) {
+      throw new RuntimeException(nsae);
+    }
+  });
+
   /**
    * Creates a Base64 SHA-512 digest of the input.
    *
@@ -16,13 +42,84 @@ class SignatureUtils {
    * @return Base64 encoded SHA-512 digest
    */
   static String createDigest(String payload) {
-    try {
-      return Base64.getEncoder().encodeToString(
-          MessageDigest.getInstance("SHA-512").digest(payload.getBytes())
-      );
-    } catch (NoSuchAlgorithmException nsae) {
-      throw new RuntimeException(nsae);
+    return Base64.getEncoder().encodeToString(sha512().digest(payload.getBytes(UTF_8)));
+  }
+
+  /**
+   * Creates a Base64 SHA-512 digest of a range of bytes.
+   *
+   * @param payload Input payload
+   * @return Base64 encoded SHA-512 digest
+   */
+  static String createDigest(byte[] payload, int offset, int length) {
+    MessageDigest messageDigest = sha512();
+    messageDigest.update(payload, offset, length);
+    return Base64.getEncoder().encodeToString(messageDigest.digest());
+  }
+
+  /**
+   * Creates a Base64 SHA-512 digest of everything read from a stream. The stream is read to the end
+   * but not closed.
+   *
+   * @param payload Input payload
+   * @return Base64 encoded SHA-512 digest
+   */
+  static String createDigest(InputStream payload) throws IOException {
+    MessageDigest messageDigest = sha512();
+    byte[] chunk = CHUNKS.get();
+    int read;
+    while ((read = payload.read(chunk, 0, CHUNK_SIZE)) != -1) {
+      messageDigest.update(chunk, 0, read);
     }
+    return Base64.getEncoder().encodeToString(messageDigest.digest());
+  }
+
+  /**
+   * Creates a Base64 SHA-512 digest of the remaining bytes in a buffer. The buffer's position is left
+   * unchanged.
+   *
+   * @param payload Input payload
+   * @return Base64 encoded SHA-512 digest
+   */
+  static String createDigest(ByteBuffer payload) {
+    MessageDigest messageDigest = sha512();
+    update(messageDigest, payload.duplicate());
+    return Base64.getEncoder().encodeToString(messageDigest.digest());
+  }
+
+  /**
+   * Creates a Base64 SHA-512 digest of a file's contents, reading it through a memory mapping.
+   *
+   * @param payload Path to the input payload
+   * @return Base64 encoded SHA-512 digest
+   */
+  static String createDigest(Path payload) throws IOException {
+    MessageDigest messageDigest = sha512();
+    try (FileChannel channel = FileChannel.open(payload, StandardOpenOption.READ)) {
+      long size = channel.size();
+      for (long position = 0; position < size; position += MAP_WINDOW_SIZE) {
+        MappedByteBuffer window = channel.map(MapMode.READ_ONLY, position, Math.min(MAP_WINDOW_SIZE, size - position));
+        update(messageDigest, window);
+      }
+    }
+    return Base64.getEncoder().encodeToString(messageDigest.digest());
+  }
+
+  private static void update(MessageDigest messageDigest, ByteBuffer buffer) {
+    int end = buffer.limit();
+    while (buffer.position() < end) {
+      buffer.limit(Math.min(buffer.position() + CHUNK_SIZE, end));
+      messageDigest.update(buffer);
+    }
+  }
+
+  /**
+   * Gets this thread's SHA-512 message digest, ready for use.
+   */
+  static MessageDigest sha512() {
+    MessageDigest messageDigest = SHA_512.get();
+    messageDigest.reset();
+    return messageDigest;
   }
 
   /**
@@ -1,5 +1,7 @@
 package com.starlingbank;
 
+import java.security.Key;
+
 /**
  * A signing algorithm, with a name for putting in the header of a request to Starling, and name for getting a Signature instance in Java.
  */
@@ -17,6 +19,17 @@ enum SigningAlgorithm {
     this.javaName = javaName;
   }
 
+  /**
+   * The usual algorithm to sign with for a type of key: RSA_SHA256 for RSA keys, or ECDSA_SHA256 for EC keys.
+   */
+  static SigningAlgorithm forKey(Key key) {
+    return switch (key.getAlgorithm()) {
+      case "RSA" -> RSA_SHA256;
+      case "EC" -> ECDSA_SHA256;
+      default -> throw new IllegalArgumentException("Can't sign with " + key.getAlgorithm() + " keys, only RSA or EC");
+    };
+  }
+
   public String starlingName() {
     return starlingName;
   }
@@ -0,0 +1,156 @@
+package com.starlingbank;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.starlingbank.dto.SigningRequest;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Signs requests over HTTP on localhost, so that programs which can't sign requests themselves
+ * don't need to start a new JVM, and parse the private key, for every request.
+ * <p>
+ * POST a JSON object with a {@code requestTarget}, {@code payload} and optionally an
+ * {@code algorithm} to {@code /sign}, and get back a JSON object of the headers to send with that
+ * request. POST a JSON array of them to sign several requests in one round trip, and get back an
+ * array of headers in the same order.
+ * <p>
+ * The private key is parsed once, at startup, and each worker thread keeps a signer initialised
+ * with it, so signing a request costs little more than the signature itself.
+ * <p>
+ * Listening only on localhost isn't enough to keep the key to ourselves, as any web page open in a
+ * browser can reach localhost through DNS rebinding. So requests must also be addressed to
+ * localhost in their {@code Host} header, which a rebound page can't fake, and carry the secret
+ * generated when the daemon started in an {@value #SECRET_HEADER} header.
+ */
+class SigningDaemon {
+
+  // Headers are full of = and quotes, which are clearer left unescaped
+  private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+  private static final int WARM_UP_SIGNATURES = 200;
+  static final String SECRET_HEADER = "X-Signing-Secret";
+
+  private final RequestSigner requestSigner;
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final Set<String> allowedHosts;
+  private final String secret;
+
+  SigningDaemon(RequestSigner requestSigner, int port) throws IOException {
+    this.requestSigner = requestSigner;
+    this.allowedHosts = Set.of("localhost:" + port, "127.0.0.1:" + port, "[::1]:" + port);
+    byte[] secretBytes = new byte[32];
+    new SecureRandom().nextBytes(secretBytes);
+    this.secret = Base64.getUrlEncoder().withoutPadding().encodeToString(secretBytes);
+    this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    // Only listen on localhost: anything that can reach this can sign requests with the key
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.setExecutor(executor);
+    server.createContext("/sign", this::handle);
+  }
+
+  void start() throws InterruptedException {
+    warmUp();
+    server.start();
+  }
+
+  /**
+   * Gets the secret every request must carry in its {@value #SECRET_HEADER} header, which is new
+   * each time the daemon starts.
+   */
+  String secret() {
+    return secret;
+  }
+
+  void stop() {
+    server.stop(0);
+    executor.shutdown();
+  }
+
+  /**
+   * Signs some throwaway requests on every worker thread, so the first real requests don't pay for
+   * initialising signers or for the JIT compiler.
+   */
+  private void warmUp() throws InterruptedException {
+    List<Callable<Object>> warmUps = new ArrayList<>();
+    for (int i = 0; i < WARM_UP_SIGNATURES; i++) {
+      warmUps.add(() -> requestSigner.sign("put /warm-up", "{}"));
+    }
+    executor.invokeAll(warmUps);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      String host = exchange.getRequestHeaders().getFirst("Host");
+      if (host == null || !allowedHosts.contains(host.toLowerCase())) {
+        respond(exchange, 403, Map.of("error", "Requests must be addressed to localhost"));
+        return;
+      }
+      String presented = exchange.getRequestHeaders().getFirst(SECRET_HEADER);
+      if (presented == null || !MessageDigest.isEqual(presented.getBytes(UTF_8), secret.getBytes(UTF_8))) {
+        respond(exchange, 401, Map.of("error", "Missing or wrong " + SECRET_HEADER + " header"));
+        return;
+      }
+      if (!exchange.getRequestMethod().equals("POST")) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+
+      Object signed;
+      try (Reader reader = new InputStreamReader(exchange.getRequestBody(), UTF_8)) {
+        JsonElement body = JsonParser.parseReader(reader);
+        if (body.isJsonArray()) {
+          List<Map<String, String>> headers = new ArrayList<>();
+          for (JsonElement request : body.getAsJsonArray()) {
+            headers.add(sign(request));
+          }
+          signed = headers;
+        } else {
+          signed = sign(body);
+        }
+      } catch (JsonParseException | IllegalArgumentException | IllegalStateException e) {
+        respond(exchange, 400, Map.of("error", String.valueOf(e.getMessage())));
+        return;
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+        respond(exchange, 500, Map.of("error", "Could not sign the request"));
+        return;
+      }
+      respond(exchange, 200, signed);
+    }
+  }
+
+  private Map<String, String> sign(JsonElement json) {
+    return requestSigner.sign(GSON.fromJson(json, SigningRequest.class));
+  }
+
+  private static void respond(HttpExchange exchange, int code, Object body) throws IOException {
+    byte[] bytes = GSON.toJson(body).getBytes(UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json");
+    exchange.sendResponseHeaders(code, bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package com.starlingbank;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.util.Base64;
+
+/**
+ * Signs text with a single private key and signing algorithm.
+ * <p>
+ * Each thread gets its own {@link Signature}, initialised with the key the first time that thread
+ * signs. After that, signing does no provider lookup or key setup, as {@link Signature#sign()}
+ * leaves the instance ready to sign again with the same key.
+ */
+class SigningEngine {
+
+  private final PrivateKey privateKey;
+  private final SigningAlgorithm signingAlgorithm;
+  private final ThreadLocal<Signature> signatures;
+
+  SigningEngine(PrivateKey privateKey, SigningAlgorithm signingAlgorithm) {
+    this.privateKey = privateKey;
+    this.signingAlgorithm = signingAlgorithm;
+    this.signatures = ThreadLocal.withInitial(this::newSignature);
+    // Fail fast if the key doesn't suit the algorithm, rather than on the first request
+    signatures.get();
+  }
+
+  SigningAlgorithm signingAlgorithm() {
+    return signingAlgorithm;
+  }
+
+  /**
+   * Gets an engine that signs with the same key, but another algorithm.
+   *
+   * @throws IllegalArgumentException if the key can't sign with that algorithm
+   */
+  SigningEngine withAlgorithm(SigningAlgorithm algorithm) {
+    if (algorithm == signingAlgorithm) {
+      return this;
+    }
+    try {
+      return new SigningEngine(privateKey, algorithm);
+    } catch (RuntimeException e) {
+      if (e.getCause() instanceof InvalidKeyException) {
+        throw new IllegalArgumentException("An " + privateKey.getAlgorithm() + " key can't sign " + algorithm + " requests", e);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Creates a Base64 SHA-512 digest of the input.
+   *
+   * @param payload Input payload
+   * @return Base64 encoded SHA-512 digest
+   */
+  String createDigest(String payload) {
+    return SignatureUtils.createDigest(payload);
+  }
+
+  /**
+   * Creates a Base64 SHA-512 digest of a range of bytes.
+   */
+  String createDigest(byte[] payload, int offset, int length) {
+    return SignatureUtils.createDigest(payload, offset, length);
+  }
+
+  /**
+   * Creates a Base64 SHA-512 digest of everything read from a stream, a chunk at a time.
+   */
+  String createDigest(InputStream payload) throws IOException {
+    return SignatureUtils.createDigest(payload);
+  }
+
+  /**
+   * Creates a Base64 SHA-512 digest of the remaining bytes in a buffer, a chunk at a time.
+   */
+  String createDigest(ByteBuffer payload) {
+    return SignatureUtils.createDigest(payload);
+  }
+
+  /**
+   * Creates a Base64 SHA-512 digest of a file, memory mapped and hashed a chunk at a time.
+   */
+  String createDigest(Path payload) throws IOException {
+    return SignatureUtils.createDigest(payload);
+  }
+
+  /**
+   * Calculate the signature for some text, encoded as base 64.
+   *
+   * @param textToSign The text you want signed
+   * @return Base64 encoded signature
+   */
+  String sign(String textToSign) {
+    return sign(textToSign.getBytes(UTF_8));
+  }
+
+  /**
+   * Calculate the signature for some bytes, encoded as base 64.
+   *
+   * @param bytesToSign The bytes you want signed
+   * @return Base64 encoded signature
+   */
+  String sign(byte[] bytesToSign) {
+    return Base64.getEncoder().encodeToString(signBytes(bytesToSign, 0, bytesToSign.length));
+  }
+
+  /**
+   * Calculate the raw signature for a range of bytes.
+   */
+  byte[] signBytes(byte[] bytesToSign, int offset, int length) {
+    Signature signature = signatures.get();
+    try {
+      signature.update(bytesToSign, offset, length);
+      return signature.sign();
+    } catch (GeneralSecurityException e) {
+      // A failed sign leaves the instance in an unknown state, so start afresh next time
+      signatures.remove();
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Calculate the raw signature for a range of bytes, writing it into a buffer rather than
+   * allocating a new one.
+   *
+   * @return The length of the signature
+   */
+  int signBytes(byte[] bytesToSign, int offset, int length, byte[] signatureBuffer) {
+    Signature signature = signatures.get();
+    try {
+      signature.update(bytesToSign, offset, length);
+      return signature.sign(signatureBuffer, 0, signatureBuffer.length);
+    } catch (GeneralSecurityException e) {
+      // A failed sign leaves the instance in an unknown state, so start afresh next time
+      signatures.remove();
+      throw new RuntimeException(e);
+    }
+  }
+
+  private Signature newSignature() {
+    try {
+      Signature signature = Signature.getInstance(signingAlgorithm.javaName());
+      signature.initSign(privateKey);
+      return signature;
+    } catch (GeneralSecurityException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
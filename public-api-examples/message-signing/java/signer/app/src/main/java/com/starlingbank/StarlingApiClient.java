@@ -1,132 +1,628 @@
 package com.starlingbank;
 
-import static com.starlingbank.SignatureUtils.createAuthorizationHeader;
-import static com.starlingbank.SignatureUtils.createDigest;
-import static com.starlingbank.SignatureUtils.sign;
-import static com.starlingbank.SigningAlgorithm.RSA_SHA256;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.time.format.DateTimeFormatter.ISO_OFFSET_DATE_TIME;
 
 import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.starlingbank.ResponseCache.Loader;
+import com.starlingbank.ResponseCache.Validated;
 import com.starlingbank.dto.Account;
-import com.starlingbank.dto.AccountsResponse;
 import com.starlingbank.dto.Payee;
-import com.starlingbank.dto.PayeesResponse;
 import com.starlingbank.dto.PaymentInitiationResponse;
 import com.starlingbank.dto.PaymentRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
-import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
-import java.security.KeyFactory;
+import java.net.http.HttpTimeoutException;
 import java.security.PrivateKey;
+import java.time.Duration;
 import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 class StarlingApiClient {
 
   private static final Gson GSON = new Gson();
   private static final String HOSTNAME = "https://api.starlingbank.com";
 
-  private static final String PAY_LOCAL_ENDPOINT = "/api/v2/payments/local/account/%s/category/%s";
-  private static final String ACCOUNTS_ENDPOINT = "/api/v2/accounts";
-  private static final String PAYEES_ENDPOINT = "/api/v2/payees";
+  static final String PAY_LOCAL_ENDPOINT = "/api/v2/payments/local/account/%s/category/%s";
+  static final String ACCOUNTS_ENDPOINT = "/api/v2/accounts";
+  static final String PAYEES_ENDPOINT = "/api/v2/payees";
+
+  // Worth retrying, as the next attempt may reach a healthy server
+  private static final Set<Integer> RETRYABLE_STATUS_CODES = Set.of(502, 503, 504);
+  private static final Duration RETRY_BACKOFF = Duration.ofMillis(100);
+  private static final int LATENCY_WINDOW = 512;
+  private static final int TOO_MANY_REQUESTS = 429;
+  // Throttled requests are queued again rather than failed, but not forever
+  private static final int MAX_THROTTLED = 20;
+
+  // Async responses are read here rather than on the HttpClient's threads, as reading a body blocks
+  // until it has arrived
+  private static final AtomicInteger READER_COUNT = new AtomicInteger();
+  private static final Executor RESPONSE_READERS = Executors.newCachedThreadPool(runnable -> {
+    Thread thread = new Thread(runnable, "starling-api-reader-" + READER_COUNT.incrementAndGet());
+    thread.setDaemon(true);
+    return thread;
+  });
 
   private final String accessToken;
   private final UUID keyUid;
-  private final PrivateKey signingKey;
-  private final HttpClient client = HttpClient.newBuilder().build();
+  private final SigningEngine signingEngine;
+  private final HttpClient client;
+  private final ResponseCache cache;
+  // Keeps this token's lookups apart from other tokens' in a shared cache, without holding the token in it
+  private final String cacheKeyPrefix;
+  private final RequestPolicy policy;
+  private final RequestScheduler scheduler;
+  private final Map<String, LatencyTracker> latencies;
 
   StarlingApiClient(
       String accessToken,
       String signingKeyFilename,
       UUID keyUid) {
+    this(accessToken, signingKeyFilename, keyUid, null);
+  }
+
+  /**
+   * @param cache Caches account and payee lookups, or null to look them up every time
+   */
+  StarlingApiClient(
+      String accessToken,
+      String signingKeyFilename,
+      UUID keyUid,
+      ResponseCache cache) {
+    this(accessToken, signingKeyFilename, keyUid, null, cache);
+  }
+
+  /**
+   * @param signingKeyFilename An RSA or EC private key
+   * @param signingAlgorithm The algorithm to sign requests with, or null for the usual one for the type of key
+   * @param cache Caches account and payee lookups, or null to look them up every time
+   */
+  StarlingApiClient(
+      String accessToken,
+      String signingKeyFilename,
+      UUID keyUid,
+      SigningAlgorithm signingAlgorithm,
+      ResponseCache cache) {
+    this(accessToken, loadSigningKey(signingKeyFilename), keyUid, signingAlgorithm, cache);
+  }
+
+  /**
+   * @param signingKey An RSA or EC private key
+   * @param signingAlgorithm The algorithm to sign requests with, or null for the usual one for the type of key
+   * @param cache Caches account and payee lookups, or null to look them up every time
+   */
+  StarlingApiClient(
+      String accessToken,
+      PrivateKey signingKey,
+      UUID keyUid,
+      SigningAlgorithm signingAlgorithm,
+      ResponseCache cache) {
+    this(accessToken, signingKey, keyUid, signingAlgorithm, cache, RequestPolicy.DEFAULT);
+  }
+
+  /**
+   * @param signingKey An RSA or EC private key
+   * @param signingAlgorithm The algorithm to sign requests with, or null for the usual one for the type of key
+   * @param cache Caches account and payee lookups, or null to look them up every time. It can be
+   *     shared by clients with different access tokens, as each token's lookups are kept apart.
+   * @param policy Timeouts, hedging and retries for each endpoint
+   */
+  StarlingApiClient(
+      String accessToken,
+      PrivateKey signingKey,
+      UUID keyUid,
+      SigningAlgorithm signingAlgorithm,
+      ResponseCache cache,
+      RequestPolicy policy) {
+    this(accessToken, signingKey, keyUid, signingAlgorithm, cache, policy, RequestScheduler.forAccessToken(accessToken));
+  }
+
+  /**
+   * @param signingKey An RSA or EC private key
+   * @param signingAlgorithm The algorithm to sign requests with, or null for the usual one for the type of key
+   * @param cache Caches account and payee lookups, or null to look them up every time. It can be
+   *     shared by clients with different access tokens, as each token's lookups are kept apart.
+   * @param policy Timeouts, hedging and retries for each endpoint
+   * @param scheduler Paces requests to the rate Starling allows, which should be shared by every
+   *     client using the same access token
+   */
+  StarlingApiClient(
+      String accessToken,
+      PrivateKey signingKey,
+      UUID keyUid,
+      SigningAlgorithm signingAlgorithm,
+      ResponseCache cache,
+      RequestPolicy policy,
+      RequestScheduler scheduler) {
     this.accessToken = accessToken;
     this.keyUid = keyUid;
+    this.cache = cache;
+    this.cacheKeyPrefix = SignatureUtils.createDigest(accessToken) + ':';
+    this.policy = policy;
+    this.scheduler = scheduler;
+    this.latencies = new ConcurrentHashMap<>();
+    this.client = HttpClient.newBuilder().connectTimeout(policy.connectTimeout()).build();
+    this.signingEngine = new SigningEngine(signingKey,
+        signingAlgorithm != null ? signingAlgorithm : SigningAlgorithm.forKey(signingKey));
+  }
+
+  private StarlingApiClient(StarlingApiClient previous, String accessToken) {
+    this.accessToken = accessToken;
+    this.keyUid = previous.keyUid;
+    this.cache = previous.cache;
+    this.cacheKeyPrefix = SignatureUtils.createDigest(accessToken) + ':';
+    this.policy = previous.policy;
+    this.scheduler = RequestScheduler.refreshAccessToken(previous.scheduler, previous.accessToken, accessToken);
+    this.latencies = previous.latencies;
+    this.client = previous.client;
+    this.signingEngine = previous.signingEngine;
+  }
+
+  /**
+   * Creates a client for an access token that's been refreshed, which carries on with this client's
+   * connections, latencies and request rate rather than starting again.
+   */
+  StarlingApiClient withAccessToken(String refreshedToken) {
+    return new StarlingApiClient(this, refreshedToken);
+  }
+
+  private static PrivateKey loadSigningKey(String signingKeyFilename) {
     try {
-      KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-      this.signingKey = KeyUtils.getPrivateKey(signingKeyFilename, keyFactory);
+      return KeyUtils.getPrivateKey(signingKeyFilename);
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
   }
 
   Account getPrimaryGbpAccount() throws RequestFailureException {
-    HttpRequest request = HttpRequest.newBuilder()
-        .header("Authorization", "Bearer " + accessToken)
-        .header("Content-Type", "application/json")
-        .GET()
-        .uri(URI.create(HOSTNAME + ACCOUNTS_ENDPOINT))
-        .build();
-
-    AccountsResponse response = send(request, AccountsResponse.class);
-
-    return response.accounts()
-        .stream()
-        .filter(a -> a.accountType().equals("PRIMARY") && a.currency().equals("GBP"))
-        .findFirst()
+    return lookup("primary-gbp-account", ACCOUNTS_ENDPOINT, reader -> findFirst(reader, "accounts", Account.class,
+        a -> a.accountType().equals("PRIMARY") && a.currency().equals("GBP")))
         .orElseThrow(() -> new IllegalStateException("Unable to find GBP primary account"));
   }
 
+  /**
+   * Initiates a payment. It's only retried if it has an {@code externalIdentifier}, which stops
+   * Starling making the payment twice.
+   */
   PaymentInitiationResponse initiatePayment(
       Account sourceAccount,
       PaymentRequest request) throws RequestFailureException {
+    return read(await(exchangeAsync(PAY_LOCAL_ENDPOINT, () -> signedPaymentRequest(sourceAccount, request),
+        isIdempotent(request), false, 1, 0)), reader -> GSON.fromJson(reader, PaymentInitiationResponse.class));
+  }
 
+  /**
+   * Initiates a payment without blocking the calling thread. The future fails with a
+   * {@link RequestFailureException} if Starling rejects the payment. It's only retried if it has
+   * an {@code externalIdentifier}, which stops Starling making the payment twice.
+   */
+  CompletableFuture<PaymentInitiationResponse> initiatePaymentAsync(
+      Account sourceAccount,
+      PaymentRequest request) {
+    return readAsync(exchangeAsync(PAY_LOCAL_ENDPOINT, () -> signedPaymentRequest(sourceAccount, request),
+        isIdempotent(request), false, 1, 0), PaymentInitiationResponse.class);
+  }
+
+  /**
+   * Initiates a batch of payments, with at most {@code maxInFlight} requests outstanding at once.
+   * A failed payment doesn't stop the rest of the batch; each one gets its own result, in the same
+   * order as the requests.
+   */
+  CompletableFuture<List<PaymentResult>> initiatePayments(
+      Account sourceAccount,
+      List<PaymentRequest> requests,
+      int maxInFlight) {
+    if (maxInFlight < 1) {
+      throw new IllegalArgumentException("maxInFlight must be at least 1 but was " + maxInFlight);
+    }
+    return new PaymentBatch(sourceAccount, requests, maxInFlight).start();
+  }
+
+  HttpRequest signedPaymentRequest(Account sourceAccount, PaymentRequest request) {
     String date = ISO_OFFSET_DATE_TIME.format(ZonedDateTime.now());
     String path = PAY_LOCAL_ENDPOINT.formatted(sourceAccount.accountUid(),
         sourceAccount.defaultCategory());
-    String json = GSON.toJson(request);
-    String digest = createDigest(json);
-    String textToSign = "(request-target): put %s\nDate: %s\nDigest: %s".formatted(path, date,
-        digest);
-
-    String signature = sign(signingKey, RSA_SHA256, textToSign);
-    String authorizationHeader = createAuthorizationHeader(accessToken, keyUid, RSA_SHA256,
-        signature);
+    // Serialised once, and the same bytes digested and sent
+    JsonBody body = JsonBody.of(GSON, request);
+    String digest = body.digest(signingEngine);
+    String authorizationHeader = AuthorizationHeaderBuilder.forThread()
+        .build(signingEngine, accessToken, keyUid, "put", path, date, digest);
 
-    HttpRequest req = HttpRequest.newBuilder()
+    return HttpRequest.newBuilder()
         .header("Date", date)
         .header("Digest", digest)
         .header("Authorization", authorizationHeader)
         .header("Content-Type", "application/json")
-        .PUT(BodyPublishers.ofString(json))
+        .PUT(body.publisher())
         .uri(URI.create(HOSTNAME + path))
+        .timeout(policy.timeout(PAY_LOCAL_ENDPOINT, latencyTracker(PAY_LOCAL_ENDPOINT)))
         .build();
-
-    return send(req, PaymentInitiationResponse.class);
   }
 
   public Optional<Payee> findPayee(String payeeName) throws RequestFailureException {
+    String cacheKey = "payee:" + payeeName;
+    // Misses aren't kept, so a payee added just after one is found by the next lookup
+    return lookup(cacheKey, PAYEES_ENDPOINT, reader -> findFirst(reader, "payees", Payee.class,
+        p -> p.payeeName().equals(payeeName)), Optional::isPresent);
+  }
 
-    HttpRequest request = HttpRequest.newBuilder()
-        .header("Authorization", "Bearer " + accessToken)
-        .header("Content-Type", "application/json")
-        .GET()
-        .uri(URI.create(HOSTNAME + PAYEES_ENDPOINT))
-        .build();
+  /**
+   * Drops any cached lookups, e.g. after adding a payee, so the next lookup sees the change.
+   */
+  void invalidateCache() {
+    if (cache != null) {
+      cache.invalidateAll();
+    }
+  }
+
+  /**
+   * Gets a resource and reads a value from it, through the cache if there is one.
+   */
+  private <T> T lookup(String cacheKey, String endpoint, ResponseReader<T> responseReader)
+      throws RequestFailureException {
+    return lookup(cacheKey, endpoint, responseReader, value -> true);
+  }
+
+  /**
+   * Gets a resource and reads a value from it, through the cache if there is one, only caching
+   * values that should be kept.
+   */
+  private <T> T lookup(String cacheKey, String endpoint, ResponseReader<T> responseReader, Predicate<T> keep)
+      throws RequestFailureException {
+    Loader<T> loader = previous -> get(endpoint, responseReader, previous);
+    return cache == null ? loader.load(null).value() : cache.get(cacheKeyPrefix + cacheKey, loader, keep);
+  }
 
-    return send(request, PayeesResponse.class)
-        .payees()
-        .stream()
-        .filter(p -> p.payeeName().equals(payeeName))
-        .findFirst();
+  /**
+   * Gets a resource, asking Starling only for changes if we already have a copy with an ETag.
+   */
+  private <T> Validated<T> get(String endpoint, ResponseReader<T> responseReader, Validated<T> previous)
+      throws RequestFailureException {
+    // Built for each attempt, so a retry gets a timeout from the latencies seen since
+    Supplier<HttpRequest> requests = () -> {
+      HttpRequest.Builder builder = HttpRequest.newBuilder()
+          .header("Authorization", "Bearer " + accessToken)
+          .header("Content-Type", "application/json")
+          .GET()
+          .uri(URI.create(HOSTNAME + endpoint))
+          .timeout(policy.timeout(endpoint, latencyTracker(endpoint)));
+      if (previous != null && previous.etag() != null) {
+        builder.header("If-None-Match", previous.etag());
+      }
+      return builder.build();
+    };
+
+    // Reads are always safe to retry and to hedge
+    HttpResponse<InputStream> resp = await(exchangeAsync(endpoint, requests, true, true, 1, 0));
+    if (resp.statusCode() == 304 && previous != null) {
+      closeQuietly(resp.body());
+      return previous;
+    }
+    return new Validated<>(read(resp, responseReader), resp.headers().firstValue("ETag").orElse(null));
+  }
 
+  /**
+   * Sends a request once it's our turn, retrying it if it's safe to and it failed in a way the next
+   * attempt might not. A request that's throttled goes back in the queue, rather than failing.
+   *
+   * @param endpoint The endpoint's path template, to time its requests by
+   * @param requests Creates the request for each attempt, so each can be signed afresh
+   * @param retry Whether the request is safe to send more than once
+   * @param hedge Whether to hedge a slow attempt with a second one, which only suits reads
+   * @param attempt The number of this attempt, from 1, not counting throttled attempts
+   * @param throttled The number of times the request has been throttled
+   */
+  private CompletableFuture<HttpResponse<InputStream>> exchangeAsync(String endpoint,
+      Supplier<HttpRequest> requests, boolean retry, boolean hedge, int attempt, int throttled) {
+    // Signed only once it's our turn, so a request that waited in the queue isn't sent with an old Date
+    return scheduler.acquire().thenCompose(turn -> {
+      LatencyTracker latencyTracker = latencyTracker(endpoint);
+      HttpRequest request = requests.get();
+      long sentAt = System.nanoTime();
+      Optional<Duration> hedgeDelay = hedge ? policy.hedgeDelay(endpoint, latencyTracker) : Optional.empty();
+      CompletableFuture<HttpResponse<InputStream>> response = hedgeDelay.isPresent()
+          ? hedgedAttempt(request, latencyTracker, hedgeDelay.get())
+          : attempt(request, latencyTracker);
+      return response.handle((resp, throwable) -> {
+        if (resp != null && resp.statusCode() == TOO_MANY_REQUESTS && throttled < MAX_THROTTLED) {
+          closeQuietly(resp.body());
+          scheduler.throttled(sentAt, RequestScheduler.parseRetryAfter(resp.headers().firstValue("Retry-After").orElse(null)));
+          // Starling didn't act on a throttled request, so it's always safe to send again
+          return exchangeAsync(endpoint, requests, retry, hedge, attempt, throttled + 1);
+        }
+        if (resp != null && resp.statusCode() != TOO_MANY_REQUESTS) {
+          scheduler.succeeded();
+        }
+        boolean canRetry = retry && attempt <= policy.maxRetries();
+        if (resp != null && (!canRetry || !RETRYABLE_STATUS_CODES.contains(resp.statusCode()))) {
+          return CompletableFuture.completedFuture(resp);
+        }
+        if (throwable != null && (!canRetry || !(cause(throwable) instanceof IOException))) {
+          return CompletableFuture.<HttpResponse<InputStream>>failedFuture(cause(throwable));
+        }
+        if (resp != null) {
+          closeQuietly(resp.body());
+        }
+        // Back off exponentially, with jitter so clients retrying together spread out
+        long backoffNanos = RETRY_BACKOFF.toNanos() << (attempt - 1);
+        Executor delayed = CompletableFuture.delayedExecutor(
+            backoffNanos / 2 + ThreadLocalRandom.current().nextLong(backoffNanos / 2), TimeUnit.NANOSECONDS);
+        return CompletableFuture.supplyAsync(() -> null, delayed)
+            .thenCompose(ignored -> exchangeAsync(endpoint, requests, true, hedge, attempt + 1, throttled));
+      }).thenCompose(Function.identity());
+    });
   }
 
-  private <T> T send(HttpRequest request, Class<T> responseType) throws RequestFailureException {
+  /**
+   * Sends a request, recording how long it takes to respond. A request that times out or is
+   * cancelled is recorded at how long it had taken so far, as its latency was at least that.
+   */
+  private CompletableFuture<HttpResponse<InputStream>> attempt(HttpRequest request, LatencyTracker latencyTracker) {
+    long start = System.nanoTime();
+    CompletableFuture<HttpResponse<InputStream>> response = client.sendAsync(request, BodyHandlers.ofInputStream());
+    response.whenComplete((resp, throwable) -> {
+      Throwable cause = throwable == null ? null : cause(throwable);
+      if (resp != null || cause instanceof HttpTimeoutException || cause instanceof CancellationException) {
+        latencyTracker.record(System.nanoTime() - start);
+      }
+    });
+    return response;
+  }
+
+  /**
+   * Sends a request, and if it hasn't responded within the delay, sends it again. The first response
+   * from either is used, and the other is cancelled. It only fails if every attempt made fails.
+   */
+  private CompletableFuture<HttpResponse<InputStream>> hedgedAttempt(HttpRequest request,
+      LatencyTracker latencyTracker, Duration delay) {
+    CompletableFuture<HttpResponse<InputStream>> winner = new CompletableFuture<>();
+    List<CompletableFuture<HttpResponse<InputStream>>> attempts = new CopyOnWriteArrayList<>();
+    AtomicInteger pending = new AtomicInteger(1);
+
+    Consumer<CompletableFuture<HttpResponse<InputStream>>> settle = attempt -> attempt.whenComplete((resp, throwable) -> {
+      if (resp != null) {
+        if (winner.complete(resp)) {
+          attempts.forEach(other -> other.cancel(true));
+        } else {
+          closeQuietly(resp.body());
+        }
+      } else if (pending.decrementAndGet() == 0) {
+        winner.completeExceptionally(cause(throwable));
+      }
+    });
+
+    CompletableFuture<HttpResponse<InputStream>> first = attempt(request, latencyTracker);
+    attempts.add(first);
+    settle.accept(first);
+    CompletableFuture.delayedExecutor(delay.toNanos(), TimeUnit.NANOSECONDS).execute(() -> {
+      // Only worth hedging if there's a turn free now, as a second request is no use once it's waited
+      if (!winner.isDone() && scheduler.tryAcquire()) {
+        pending.incrementAndGet();
+        CompletableFuture<HttpResponse<InputStream>> second = attempt(request, latencyTracker);
+        attempts.add(second);
+        settle.accept(second);
+      }
+    });
+    return winner;
+  }
+
+  /**
+   * Gets the scheduler pacing this client's requests, e.g. to watch its queue depth and rate during
+   * a bulk job.
+   */
+  RequestScheduler scheduler() {
+    return scheduler;
+  }
+
+  private LatencyTracker latencyTracker(String endpoint) {
+    return latencies.computeIfAbsent(endpoint, e -> new LatencyTracker(LATENCY_WINDOW));
+  }
+
+  private static boolean isIdempotent(PaymentRequest request) {
+    return request.externalIdentifier() != null && !request.externalIdentifier().isBlank();
+  }
+
+  /**
+   * Waits for a response, failing as a blocking send would.
+   */
+  private static HttpResponse<InputStream> await(CompletableFuture<HttpResponse<InputStream>> response) {
     try {
-      HttpResponse<String> resp = client.send(request, BodyHandlers.ofString());
+      return response.get();
+    } catch (InterruptedException e) {
+      response.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(cause(e));
+    }
+  }
+
+  private <T> CompletableFuture<T> readAsync(CompletableFuture<HttpResponse<InputStream>> response, Class<T> responseType) {
+    return response
+        .thenApplyAsync(resp -> {
+          try {
+            return read(resp, reader -> GSON.fromJson(reader, responseType));
+          } catch (RequestFailureException rfe) {
+            throw new CompletionException(rfe);
+          }
+        }, RESPONSE_READERS);
+  }
+
+  private static Throwable cause(Throwable throwable) {
+    return (throwable instanceof CompletionException || throwable instanceof ExecutionException)
+        && throwable.getCause() != null ? throwable.getCause() : throwable;
+  }
+
+  /**
+   * Decodes a response straight from the body stream, without buffering the body first. The
+   * stream is closed once the reader is done with it, even if it stopped before the end.
+   */
+  private static <T> T read(HttpResponse<InputStream> resp, ResponseReader<T> responseReader)
+      throws RequestFailureException {
+    try (InputStream body = resp.body()) {
       if (resp.statusCode() < 200 || resp.statusCode() >= 300) {
-        throw new RequestFailureException(resp.body(), resp.statusCode());
+        throw new RequestFailureException(new String(body.readAllBytes(), UTF_8), resp.statusCode());
       }
-      // System.out.println(resp.body());
-      return GSON.fromJson(resp.body(), responseType);
-    } catch (RequestFailureException rfe) {
-      throw rfe;
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+      return responseReader.read(new JsonReader(new InputStreamReader(body, UTF_8)));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Reads through the array in a top level field of a JSON object, returning the first element
+   * matching the predicate without parsing the rest.
+   */
+  private static <T> Optional<T> findFirst(JsonReader reader, String field, Class<T> elementType,
+      Predicate<T> predicate) throws IOException {
+    reader.beginObject();
+    while (reader.hasNext()) {
+      if (!reader.nextName().equals(field) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+        reader.skipValue();
+        continue;
+      }
+      reader.beginArray();
+      while (reader.hasNext()) {
+        T element = GSON.fromJson(reader, elementType);
+        if (predicate.test(element)) {
+          return Optional.of(element);
+        }
+      }
+      reader.endArray();
+    }
+    return Optional.empty();
+  }
+
+  private static void closeQuietly(InputStream stream) {
+    try {
+      stream.close();
+    } catch (IOException ignored) {
+      // Nothing useful to do, we've finished with it
+    }
+  }
+
+  /**
+   * Reads a value from the JSON body of a response.
+   */
+  @FunctionalInterface
+  private interface ResponseReader<T> {
+
+    T read(JsonReader reader) throws IOException;
+  }
+
+  /**
+   * The outcome of one payment in a batch: either the response, or why it failed. Payments that
+   * Starling rejects fail with a {@link RequestFailureException}.
+   */
+  record PaymentResult(
+      PaymentRequest request,
+      PaymentInitiationResponse response,
+      Exception failure
+  ) {
+
+    boolean succeeded() {
+      return failure == null;
+    }
+  }
+
+  /**
+   * Keeps up to maxInFlight payments outstanding, starting the next as each one completes.
+   */
+  private class PaymentBatch {
+
+    private final Account sourceAccount;
+    private final List<PaymentRequest> requests;
+    private final int maxInFlight;
+    private final PaymentResult[] results;
+    private final CompletableFuture<List<PaymentResult>> completion = new CompletableFuture<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger remaining;
+    // Guards the launch loop so payments that complete immediately don't recurse into it
+    private final AtomicInteger launching = new AtomicInteger();
+    private int next;
+
+    PaymentBatch(Account sourceAccount, List<PaymentRequest> requests, int maxInFlight) {
+      this.sourceAccount = sourceAccount;
+      this.requests = List.copyOf(requests);
+      this.maxInFlight = maxInFlight;
+      this.results = new PaymentResult[this.requests.size()];
+      this.remaining = new AtomicInteger(this.requests.size());
+    }
+
+    CompletableFuture<List<PaymentResult>> start() {
+      if (requests.isEmpty()) {
+        completion.complete(List.of());
+      } else {
+        launchAvailable();
+      }
+      return completion;
+    }
+
+    private void launchAvailable() {
+      if (launching.getAndIncrement() != 0) {
+        return;
+      }
+      do {
+        while (next < requests.size() && inFlight.get() < maxInFlight) {
+          inFlight.incrementAndGet();
+          launch(next++);
+        }
+      } while (launching.decrementAndGet() != 0);
+    }
+
+    private void launch(int index) {
+      PaymentRequest request = requests.get(index);
+      CompletableFuture<PaymentInitiationResponse> future;
+      try {
+        future = initiatePaymentAsync(sourceAccount, request);
+      } catch (RuntimeException e) {
+        future = CompletableFuture.failedFuture(e);
+      }
+      future.whenComplete((response, throwable) -> {
+        results[index] = new PaymentResult(request, response, throwable == null ? null : unwrap(throwable));
+        inFlight.decrementAndGet();
+        if (remaining.decrementAndGet() == 0) {
+          completion.complete(List.of(results));
+        } else {
+          launchAvailable();
+        }
+      });
+    }
+
+    private Exception unwrap(Throwable throwable) {
+      Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+          ? throwable.getCause()
+          : throwable;
+      return cause instanceof Exception e ? e : new RuntimeException(cause);
     }
   }
 
@@ -1,31 +1,44 @@
 package com.starlingbank;
 
-import static com.starlingbank.SignatureUtils.createAuthorizationHeader;
-import static com.starlingbank.SignatureUtils.createDigest;
-import static com.starlingbank.SignatureUtils.sign;
-import static java.time.format.DateTimeFormatter.ISO_OFFSET_DATE_TIME;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.security.InvalidKeyException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
-import java.security.Signature;
-import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
-import java.time.ZonedDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.Arrays;
-import java.util.Base64;
 import java.util.Map;
 import java.util.UUID;
 
 class StarlingMessageSigner {
 
-  public static void main(String[] args) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException, IOException, InvalidKeySpecException {
+  private static final int DEFAULT_DAEMON_PORT = 7878;
+
+  public static void main(String[] args) throws NoSuchAlgorithmException, IOException, InvalidKeySpecException, InterruptedException {
+    if (args.length > 0 && args[0].equals("--daemon")) {
+      runDaemon(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
+    if (args.length > 0 && args[0].equals("--batch")) {
+      runBatch(Arrays.copyOfRange(args, 1, args.length));
+      return;
+    }
+
     if (args.length != 6) {
       System.err.println("Expected 6 arguments but got " + args.length);
       System.out.println("Usage: java StarlingMessageSigner <apiKeyUid> <privateApiKey> <signingAlgorithm> <requestTarget> <payload> <accessToken>");
+      System.out.println("   or: java StarlingMessageSigner --daemon <apiKeyUid> <privateApiKey> <signingAlgorithm> <accessToken> [port]");
+      System.out.println("   or: java StarlingMessageSigner --batch <apiKeyUid> <privateApiKey> <signingAlgorithm> <accessToken> [requestsFile]");
       System.out.println("Where:");
       System.out.println("- apiKeyUid is the key uid for the API key, you can get this from Developer Portal e.g. \"aaaaaaaa-aaaa-4aaa-aaaa-aaaaaaaaaaaa\"");
       System.out.println("- privateApiKey is the filename of the corresponding private API key e.g. \"starling-api-private.key\"");
@@ -33,38 +46,89 @@ class StarlingMessageSigner {
       System.out.println("- requestTarget is the HTTP method (lowercase), a space, then the endpoint path e.g. \"put /api/v2/payments/local/account/90d14796-c59f-4944-9146-7fc84deb253c/category/46168325-8d23-4efe-ba48-b3a74f85f23b\"");
       System.out.println("- payload is the raw JSON string e.g. \"{\"externalIdentifier\":\"7cb1a2e1-812a-49dc-9399-84f45acaff26\"}\"");
       System.out.println("- accessToken is an access token e.g. \"eyJhbGciOiJQUzI1NiIsInppcCI6IkdaSVAifQ.H4sIAAQ-_pT1TALVKOt8.uLjFJikw--DDv3Pf\"");
+      System.out.println("- port is the localhost port for the daemon to listen on, " + DEFAULT_DAEMON_PORT + " by default");
+      System.out.println("- requestsFile has a JSON object per line, with a requestTarget, payload and optional algorithm e.g.");
+      System.out.println("  {\"requestTarget\":\"put /api/v2/...\",\"payload\":\"{\\\"externalIdentifier\\\":\\\"7cb1a2e1-812a-49dc-9399-84f45acaff26\\\"}\",\"algorithm\":\"RSA_SHA512\"}");
+      System.out.println("  Requests are read from standard input if no file is given, and their headers written as JSON lines, in the same order");
       System.out.println("You may need to surround the arguments in quotes, and escape any inner quotes");
       return;
     }
 
     // Parse command line arguments
-    KeyFactory keyFactory = KeyFactory.getInstance(args[2].startsWith("ECDSA") ? "EC" : "RSA");
-    UUID apiKeyUid = UUID.fromString(args[0]);
-    PrivateKey privateApiKey = KeyUtils.getPrivateKey(args[1], keyFactory);
-    SigningAlgorithm signingAlgorithm = SigningAlgorithm.valueOf(args[2]);
     String requestTarget = args[3]; // Should be the HTTP method (lowercase), a space, then the endpoint path e.g. "put /api/v2/payments/local/account/90d14796-c59f-4944-9146-7fc84deb253c/category/46168325-8d23-4efe-ba48-b3a74f85f23b"
     String payload = args[4]; // Should be the raw JSON string e.g. "{"externalIdentifier":"7cb1a2e1-812a-49dc-9399-84f45acaff26","destinationPayeeAccountUid":"db61037a-c9db-40e9-9507-01e932b114eb","reference":"Some reference","amount":{"currency":"GBP","minorUnits":1234}}"
-    String accessToken = args[5]; // Should be access token e.g. "eyJhbGciOiJQUzI1NiIsInppcCI6IkdaSVAifQ.H4sIAAQ-_pT1TALVKOt8.uLjFJikw--DDv3Pf"
+    RequestSigner requestSigner = requestSigner(args[0], args[1], args[2], args[5]);
 
-    // Calculate the text to sign
-    String date = ISO_OFFSET_DATE_TIME.format(ZonedDateTime.now());
-    String digest = createDigest(payload);
-    String textToSign = "(request-target): %s\nDate: %s\nDigest: %s".formatted(requestTarget, date, digest);
+    // These are the headers you need to send with your request
+    Map<String, String> headers = requestSigner.sign(requestTarget, payload);
 
-    // Sign the text
-    String signature = sign(privateApiKey, signingAlgorithm, textToSign);
+    prettyPrintHeaders(headers);
+  }
 
-    // Create the authorization header
-    String authorizationHeader = createAuthorizationHeader(accessToken, apiKeyUid, signingAlgorithm, signature);
+  /**
+   * Keeps the key loaded, signing requests sent to localhost until stopped.
+   */
+  private static void runDaemon(String[] args) throws NoSuchAlgorithmException, IOException, InvalidKeySpecException, InterruptedException {
+    if (args.length != 4 && args.length != 5) {
+      System.err.println("Expected 4 or 5 arguments after --daemon but got " + args.length);
+      System.out.println("Usage: java StarlingMessageSigner --daemon <apiKeyUid> <privateApiKey> <signingAlgorithm> <accessToken> [port]");
+      return;
+    }
+    int port = args.length == 5 ? Integer.parseInt(args[4]) : DEFAULT_DAEMON_PORT;
 
-    // These are the headers you need to send with your request
-    Map<String, String> headers = Map.of(
-        "Authorization", authorizationHeader,
-        "Digest", digest,
-        "Date", date
-    );
+    SigningDaemon daemon = new SigningDaemon(requestSigner(args[0], args[1], args[2], args[3]), port);
+    Path secretFile = writeSecret(Paths.get("signing-daemon-" + port + ".secret"), daemon.secret());
+    daemon.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      daemon.stop();
+      try {
+        Files.deleteIfExists(secretFile);
+      } catch (IOException ignored) {
+        // It's no use once the daemon has stopped anyway
+      }
+    }));
+    System.out.println("Signing requests POSTed to http://localhost:" + port + "/sign with the "
+        + SigningDaemon.SECRET_HEADER + " header set to the contents of " + secretFile.toAbsolutePath());
+  }
 
-    prettyPrintHeaders(headers);
+  /**
+   * Writes the daemon's secret to a file only the current user can read, for its clients to send.
+   */
+  private static Path writeSecret(Path file, String secret) throws IOException {
+    Files.deleteIfExists(file);
+    if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+      Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+    } else {
+      Files.createFile(file);
+    }
+    return Files.writeString(file, secret, UTF_8);
+  }
+
+  /**
+   * Signs every request in a file, or standard input, writing their headers to standard output.
+   */
+  private static void runBatch(String[] args) throws NoSuchAlgorithmException, IOException, InvalidKeySpecException, InterruptedException {
+    if (args.length != 4 && args.length != 5) {
+      System.err.println("Expected 4 or 5 arguments after --batch but got " + args.length);
+      System.out.println("Usage: java StarlingMessageSigner --batch <apiKeyUid> <privateApiKey> <signingAlgorithm> <accessToken> [requestsFile]");
+      return;
+    }
+    BatchSigner batchSigner = new BatchSigner(requestSigner(args[0], args[1], args[2], args[3]), Runtime.getRuntime().availableProcessors());
+
+    try (BufferedReader in = args.length == 5
+        ? Files.newBufferedReader(Paths.get(args[4]))
+        : new BufferedReader(new InputStreamReader(System.in, UTF_8))) {
+      Writer out = new BufferedWriter(new OutputStreamWriter(System.out, UTF_8));
+      batchSigner.signAll(in, out);
+    }
+  }
+
+  private static RequestSigner requestSigner(String apiKeyUid, String privateApiKey, String signingAlgorithm, String accessToken)
+      throws NoSuchAlgorithmException, IOException, InvalidKeySpecException {
+    KeyFactory keyFactory = KeyFactory.getInstance(signingAlgorithm.startsWith("ECDSA") ? "EC" : "RSA");
+    PrivateKey privateKey = KeyUtils.getPrivateKey(privateApiKey, keyFactory);
+    SigningEngine signingEngine = new SigningEngine(privateKey, SigningAlgorithm.valueOf(signingAlgorithm));
+    return new RequestSigner(accessToken, UUID.fromString(apiKeyUid), signingEngine);
   }
 
   /**
@@ -74,4 +138,4 @@ class StarlingMessageSigner {
     System.out.println("Attach these headers to your request:");
     headers.forEach((key, value) -> System.out.println(key + ": " + value));
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,7 @@
+package com.starlingbank.dto;
+
+public record SigningRequest(
+    String requestTarget,
+    String payload,
+    String algorithm
+) {}
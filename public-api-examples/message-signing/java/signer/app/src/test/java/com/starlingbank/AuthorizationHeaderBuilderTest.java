@@ -0,0 +1,107 @@
+package com.starlingbank;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Base64;
+import java.util.UUID;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+class AuthorizationHeaderBuilderTest {
+
+  private static final String ACCESS_TOKEN = "eyJhbGciOiJQUzI1NiIsInppcCI6IkdaSVAifQ.H4sIAAQ-_pT1TALVKOt8.uLjFJikw--DDv3Pf";
+  private static final UUID KEY_UID = UUID.fromString("aaaaaaaa-aaaa-4aaa-aaaa-aaaaaaaaaaaa");
+  private static final String METHOD = "put";
+  private static final String PATH = "/api/v2/payments/local/account/90d14796-c59f-4944-9146-7fc84deb253c/category/46168325-8d23-4efe-ba48-b3a74f85f23b";
+  private static final String DATE = "2023-03-01T12:00:00.000Z";
+  private static final String DIGEST = SignatureUtils.createDigest("{\"externalIdentifier\":\"7cb1a2e1-812a-49dc-9399-84f45acaff26\"}");
+
+  private static final int WARM_UP_REQUESTS = 1_000;
+  private static final int MEASURED_REQUESTS = 500;
+  // Beyond the header String itself, e.g. for the odd allocation by the JIT or the allocation counter
+  private static final long ALLOCATION_SLACK_BYTES = 128;
+
+  @ParameterizedTest
+  @CsvSource({"RSA_SHA256, 2048", "RSA_SHA512, 2048", "ECDSA_SHA256, 256"})
+  void buildsTheSameHeaderAsFormatting(SigningAlgorithm signingAlgorithm, int keySize) throws GeneralSecurityException {
+    KeyPair keyPair = generateKeyPair(signingAlgorithm, keySize);
+    SigningEngine signingEngine = new SigningEngine(keyPair.getPrivate(), signingAlgorithm);
+
+    for (String path : new String[] {PATH, "/api/v2/payees?name=Zo\u00eb"}) {
+      String textToSign = "(request-target): %s %s\nDate: %s\nDigest: %s".formatted(METHOD, path, DATE, DIGEST);
+      String built = AuthorizationHeaderBuilder.forThread().build(signingEngine, ACCESS_TOKEN, KEY_UID, METHOD, path, DATE, DIGEST);
+
+      if (signingAlgorithm.name().startsWith("RSA")) {
+        // RSA signatures are deterministic, so the whole header can be compared with the old way of building it
+        String formatted = SignatureUtils.createAuthorizationHeader(ACCESS_TOKEN, KEY_UID, signingAlgorithm, signingEngine.sign(textToSign));
+        assertEquals(formatted, built);
+      } else {
+        // ECDSA signatures are different every time, so check the signature, then that the rest is the same
+        byte[] signature = Base64.getDecoder().decode(
+            built.substring(built.lastIndexOf("signature=\"") + "signature=\"".length(), built.length() - 1));
+        Signature verifier = Signature.getInstance(signingAlgorithm.javaName());
+        verifier.initVerify(keyPair.getPublic());
+        verifier.update(textToSign.getBytes(UTF_8));
+        assertTrue(verifier.verify(signature), "Signed different text for " + path);
+        String formatted = SignatureUtils.createAuthorizationHeader(ACCESS_TOKEN, KEY_UID, signingAlgorithm,
+            Base64.getEncoder().encodeToString(signature));
+        assertEquals(formatted, built);
+      }
+    }
+  }
+
+  /**
+   * The signature provider allocates however much it does, so the budget is what building a header
+   * allocates beyond signing the same text straight into a buffer: the header String and no more.
+   */
+  @ParameterizedTest
+  @CsvSource({"RSA_SHA256, 2048", "ECDSA_SHA256, 256"})
+  void allocatesOnlyTheHeaderBeyondTheSignature(SigningAlgorithm signingAlgorithm, int keySize) throws GeneralSecurityException {
+    SigningEngine signingEngine = new SigningEngine(generateKeyPair(signingAlgorithm, keySize).getPrivate(), signingAlgorithm);
+    AuthorizationHeaderBuilder builder = AuthorizationHeaderBuilder.forThread();
+    byte[] textToSign = "(request-target): %s %s\nDate: %s\nDigest: %s".formatted(METHOD, PATH, DATE, DIGEST).getBytes(UTF_8);
+    byte[] signatureBuffer = new byte[1024];
+
+    String header = null;
+    for (int i = 0; i < WARM_UP_REQUESTS; i++) {
+      header = builder.build(signingEngine, ACCESS_TOKEN, KEY_UID, METHOD, PATH, DATE, DIGEST);
+      signingEngine.signBytes(textToSign, 0, textToSign.length, signatureBuffer);
+    }
+
+    long before = allocatedBytes();
+    for (int i = 0; i < MEASURED_REQUESTS; i++) {
+      signingEngine.signBytes(textToSign, 0, textToSign.length, signatureBuffer);
+    }
+    long perSignature = (allocatedBytes() - before) / MEASURED_REQUESTS;
+
+    before = allocatedBytes();
+    for (int i = 0; i < MEASURED_REQUESTS; i++) {
+      header = builder.build(signingEngine, ACCESS_TOKEN, KEY_UID, METHOD, PATH, DATE, DIGEST);
+    }
+    long perHeader = (allocatedBytes() - before) / MEASURED_REQUESTS;
+
+    // A Latin-1 String: its object, and its byte array's header and contents, rounded up to 8 bytes
+    long headerStringBytes = 24 + ((16 + header.length() + 7) & ~7);
+    long budget = perSignature + headerStringBytes + ALLOCATION_SLACK_BYTES;
+    assertTrue(perHeader <= budget, "Allocated " + perHeader + " bytes per header, but the budget is " + budget
+        + " (" + perSignature + " signing, " + headerStringBytes + " for the header String)");
+  }
+
+  private static long allocatedBytes() {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private static KeyPair generateKeyPair(SigningAlgorithm signingAlgorithm, int keySize) throws GeneralSecurityException {
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance(signingAlgorithm.name().startsWith("ECDSA") ? "EC" : "RSA");
+    keyPairGenerator.initialize(keySize);
+    return keyPairGenerator.generateKeyPair();
+  }
+}
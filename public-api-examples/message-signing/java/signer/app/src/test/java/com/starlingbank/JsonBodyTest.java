@@ -0,0 +1,112 @@
+package com.starlingbank;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.google.gson.Gson;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class JsonBodyTest {
+
+  private static final Gson GSON = new Gson();
+
+  /**
+   * The digest is taken over these bytes, so they must be exactly what encoding the JSON String
+   * would give, including the '?' the JDK writes for a lone surrogate.
+   */
+  @ParameterizedTest
+  @ValueSource(strings = {
+      "Some reference",
+      "Zo\u00eb's caf\u00e9, \u20ac12.34",
+      "\u65e5\u672c\u8a9e \u0627\u0644\u0639\u0631\u0628\u064a\u0629",
+      "\ud83d\ude00 and \ud834\udd1e",
+      "lone high \ud83d",
+      "lone low \ude00 here",
+      "\ud83dx",
+      "\ud83d\ud83d\ude00",
+      "\ude00\ud83d",
+      "ends with a high surrogate \ud83d",
+      "\u007f\u0080\u07ff\u0800\uffff"})
+  void encodesExactlyAsGetBytes(String text) {
+    Map<String, Object> value = new LinkedHashMap<>();
+    value.put("reference", text);
+    value.put(text, 1234);
+
+    assertEncodesAsGetBytes(text);
+    assertEncodesAsGetBytes(value);
+  }
+
+  @Test
+  void encodesRandomTextAsGetBytes() {
+    Random random = new Random(42);
+    for (int i = 0; i < 200; i++) {
+      // Any chars at all, so surrogates turn up paired, alone and in every order
+      char[] chars = new char[random.nextInt(2000)];
+      for (int j = 0; j < chars.length; j++) {
+        chars[j] = (char) random.nextInt(Character.MAX_VALUE + 1);
+      }
+      assertEncodesAsGetBytes(new String(chars));
+    }
+  }
+
+  @Test
+  void digestsTheSameBytesAsTheString() throws GeneralSecurityException {
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+    keyPairGenerator.initialize(256);
+    SigningEngine signingEngine = new SigningEngine(keyPairGenerator.generateKeyPair().getPrivate(), SigningAlgorithm.ECDSA_SHA256);
+    Map<String, String> value = Map.of("reference", "Zo\u00eb \ud83d\ude00 \ud83d");
+
+    assertEquals(SignatureUtils.createDigest(GSON.toJson(value)), JsonBody.of(GSON, value).digest(signingEngine));
+  }
+
+  private static void assertEncodesAsGetBytes(Object value) {
+    JsonBody body = JsonBody.of(GSON, value);
+    byte[] expected = GSON.toJson(value).getBytes(UTF_8);
+    assertEquals(expected.length, body.length());
+    assertArrayEquals(expected, published(body));
+  }
+
+  /**
+   * Gets the bytes the body publishes to a request, which are what's sent.
+   */
+  private static byte[] published(JsonBody body) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CompletableFuture<byte[]> done = new CompletableFuture<>();
+    body.publisher().subscribe(new Flow.Subscriber<ByteBuffer>() {
+      @Override
+      public void onSubscribe(Flow.Subscription subscription) {
+        subscription.request(Long.MAX_VALUE);
+      }
+
+      @Override
+      public void onNext(ByteBuffer buffer) {
+        byte[] chunk = new byte[buffer.remaining()];
+        buffer.get(chunk);
+        bytes.writeBytes(chunk);
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        done.completeExceptionally(throwable);
+      }
+
+      @Override
+      public void onComplete() {
+        done.complete(bytes.toByteArray());
+      }
+    });
+    return done.join();
+  }
+}
@@ -0,0 +1,83 @@
+package com.starlingbank;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.util.Base64;
+import java.util.Random;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class KeyUtilsTest {
+
+  private static final String[] LINE_ENDINGS = {"\n", "\r\n"};
+
+  @ParameterizedTest
+  @ValueSource(ints = {0, 1, 2, 3, 47, 48, 49, 50})
+  void decodesPemLikeTheMimeDecoder(int length) {
+    byte[] der = new byte[length];
+    new Random(length).nextBytes(der);
+
+    for (String lineEnding : LINE_ENDINGS) {
+      String body = Base64.getMimeEncoder(64, lineEnding.getBytes(US_ASCII)).encodeToString(der);
+      byte[] pem = pem("PRIVATE KEY", body, lineEnding).getBytes(US_ASCII);
+      assertArrayEquals(Base64.getMimeDecoder().decode(body), KeyUtils.decodePem(pem));
+      assertArrayEquals(der, KeyUtils.decodePem(pem));
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"RSA", "EC"})
+  void decodesKeys(String algorithm) throws GeneralSecurityException {
+    byte[] der = KeyPairGenerator.getInstance(algorithm).generateKeyPair().getPrivate().getEncoded();
+
+    for (String lineEnding : LINE_ENDINGS) {
+      String body = Base64.getMimeEncoder(64, lineEnding.getBytes(US_ASCII)).encodeToString(der);
+      assertArrayEquals(der, KeyUtils.decodePem(pem("PRIVATE KEY", body, lineEnding).getBytes(US_ASCII)));
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"QUJD", "QUI", "QQ", "QUI=", "QQ=="})
+  void decodesOnlyTheFirstBlock(String body) {
+    for (String lineEnding : LINE_ENDINGS) {
+      String pem = pem("PUBLIC KEY", body, lineEnding) + pem("CERTIFICATE", "TUlJQ2RU", lineEnding);
+      assertArrayEquals(Base64.getMimeDecoder().decode(body), KeyUtils.decodePem(pem.getBytes(US_ASCII)));
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"Q", "QUJDR", "=", "Q=", "QQ=", "QUJD=", "QUI=QUJD", "QQ==QQ==", "QUI=\nQUJD", "QU=I"})
+  void rejectsBadPaddingLikeTheMimeDecoder(String body) {
+    assertThrows(IllegalArgumentException.class, () -> Base64.getMimeDecoder().decode(body));
+    for (String lineEnding : LINE_ENDINGS) {
+      byte[] pem = pem("PRIVATE KEY", body.replace("\n", lineEnding), lineEnding).getBytes(US_ASCII);
+      assertThrows(IllegalArgumentException.class, () -> KeyUtils.decodePem(pem));
+    }
+  }
+
+  /**
+   * The MIME decoder ignores anything after complete padding, but a key shouldn't have any.
+   */
+  @ParameterizedTest
+  @ValueSource(strings = {"QQ===", "QUI==", "QUI=\n=", "QQ==\nQQ=="})
+  void rejectsAnythingAfterPadding(String body) {
+    for (String lineEnding : LINE_ENDINGS) {
+      byte[] pem = pem("PRIVATE KEY", body.replace("\n", lineEnding), lineEnding).getBytes(US_ASCII);
+      assertThrows(IllegalArgumentException.class, () -> KeyUtils.decodePem(pem));
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(strings = {"QUJD!", "QU*JD"})
+  void rejectsCharactersOutsideBase64(String body) {
+    assertThrows(IllegalArgumentException.class, () -> KeyUtils.decodePem(pem("PRIVATE KEY", body, "\n").getBytes(US_ASCII)));
+  }
+
+  private static String pem(String type, String body, String lineEnding) {
+    return "-----BEGIN " + type + "-----" + lineEnding + body + lineEnding + "-----END " + type + "-----" + lineEnding;
+  }
+}
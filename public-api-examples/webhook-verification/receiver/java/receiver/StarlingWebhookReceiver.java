@@ -0,0 +1,215 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.SignatureException;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Receives Starling webhooks over HTTP, verifies their signatures and hands the verified ones to a
+ * {@link WebhookHandler}.
+ * <p>
+ * Three sets of threads keep slow work away from the acknowledgement:
+ * <ul>
+ *   <li>I/O threads read each webhook off the network and queue it for verification.</li>
+ *   <li>Verification workers check the signature, queue the event for the handler and acknowledge
+ *   the webhook.</li>
+ *   <li>Handler threads take verified events off the queue and process them, however long that
+ *   takes.</li>
+ * </ul>
+ * Both queues are bounded. When either is full the webhook is refused with 503 or 429 and a
+ * Retry-After header, so Starling retries it later instead of it waiting here.
+ */
+class StarlingWebhookReceiver {
+
+  // BEGIN USER CONFIG
+  private static final int PORT = 8000;
+  // Don't hardcode these in production
+  private static final String V2_PUBLIC_KEY = "MIIBIjANBgkqhkiG9w0BAQEFAAOCAQ8AMIIBCgKCAQEAgIdCVYnz6JOFT7GGtjrMg4uaPRGGs5VlglSSd9i2i73zRp7AwZm8O/3LM5kPuPONOysJpdVSz9x6VGsRcaKkvMaOfYWYa6fe4l5IFiM8Z+WaL0WjIebdJOOjWxH3q/kW6KclwKBW0+2iNZPcZocllCOjPn/swp2MdhKLJOQkdB/1Q8Emxr6tsOlJkc2lWpXdtPHWUbBp31eF5/eDmuVCCBhTL76UyogQNgRV5qH2g/a2bNcNgTThR0PntXJLy2HLi9cEfXepevpoJM8HXNdaFwZV4pQUEzm3/jG7zI3isXnvtffG4uTIR8Q35yDrYeN8pX+zOAcnJYNbr9xdFEv7JQIDAQAB";
+  private static final Set<String> V1_SHARED_SECRETS = Set.of("aaaaaaaa-aaaa-4aaa-aaaa-aaaaaaaaaaaa");
+
+  private static final int IO_THREADS = 2;
+  private static final int VERIFICATION_THREADS = Runtime.getRuntime().availableProcessors();
+  private static final int VERIFICATION_QUEUE_CAPACITY = 1_000;
+  private static final int HANDLER_THREADS = 4;
+  private static final int EVENT_QUEUE_CAPACITY = 10_000;
+  // END USER CONFIG
+
+  private static final String SIGNATURE_HEADER = "X-Hook-Signature";
+  private static final String RETRY_AFTER_SECONDS = "1";
+
+  private final HttpServer server;
+  private final ExecutorService ioExecutor;
+  private final ThreadPoolExecutor verificationExecutor;
+  private final BlockingQueue<VerifiedWebhook> events;
+  private final ExecutorService handlerExecutor;
+  private final WebhookHandler handler;
+  private final StarlingV2WebhookSignatureValidator.Verifier v2Verifier = new StarlingV2WebhookSignatureValidator.Verifier(4);
+  private final StarlingWebhookSignatureValidator.Verifier v1Verifier;
+
+  public static void main(String[] args) throws IOException, GeneralSecurityException {
+    StarlingWebhookReceiver receiver = new StarlingWebhookReceiver(PORT, webhook ->
+        System.out.println(webhook.receivedAt() + " " + webhook.version() + " " + webhook.path() + ": " + webhook.body()));
+    receiver.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(receiver::stop));
+    System.out.println("Receiving webhooks on http://localhost:" + PORT + "/webhooks/v2 and /webhooks/v1");
+  }
+
+  StarlingWebhookReceiver(int port, WebhookHandler handler) throws IOException, GeneralSecurityException {
+    this.handler = handler;
+    this.v1Verifier = new StarlingWebhookSignatureValidator.Verifier(V1_SHARED_SECRETS);
+    this.ioExecutor = Executors.newFixedThreadPool(IO_THREADS, named("webhook-io"));
+    this.verificationExecutor = new ThreadPoolExecutor(VERIFICATION_THREADS, VERIFICATION_THREADS, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(VERIFICATION_QUEUE_CAPACITY), named("webhook-verifier"), new ThreadPoolExecutor.AbortPolicy());
+    this.events = new ArrayBlockingQueue<>(EVENT_QUEUE_CAPACITY);
+    this.handlerExecutor = Executors.newFixedThreadPool(HANDLER_THREADS, named("webhook-handler"));
+
+    this.server = HttpServer.create(new InetSocketAddress(port), 0);
+    server.setExecutor(ioExecutor);
+    server.createContext("/webhooks/v2", exchange -> receive(exchange, Version.V2));
+    server.createContext("/webhooks/v1", exchange -> receive(exchange, Version.V1));
+  }
+
+  void start() {
+    for (int i = 0; i < HANDLER_THREADS; i++) {
+      handlerExecutor.execute(this::handleEvents);
+    }
+    server.start();
+  }
+
+  void stop() {
+    server.stop(1);
+    ioExecutor.shutdown();
+    verificationExecutor.shutdown();
+    handlerExecutor.shutdownNow();
+  }
+
+  /**
+   * Runs on an I/O thread: reads the webhook and queues it for verification.
+   */
+  private void receive(HttpExchange exchange, Version version) throws IOException {
+    if (!exchange.getRequestMethod().equals("POST")) {
+      respond(exchange, 405);
+      return;
+    }
+    String signature = exchange.getRequestHeaders().getFirst(SIGNATURE_HEADER);
+    if (signature == null) {
+      respond(exchange, 403);
+      return;
+    }
+    byte[] body;
+    try (InputStream requestBody = exchange.getRequestBody()) {
+      body = requestBody.readAllBytes();
+    }
+
+    try {
+      verificationExecutor.execute(() -> verify(exchange, version, signature, body));
+    } catch (RejectedExecutionException e) {
+      // Too many webhooks waiting to be verified
+      retryLater(exchange, 503);
+    }
+  }
+
+  /**
+   * Runs on a verification worker: checks the signature, then queues the event and acknowledges it.
+   */
+  private void verify(HttpExchange exchange, Version version, String signature, byte[] body) {
+    try {
+      boolean valid = switch (version) {
+        case V1 -> v1Verifier.isValid(signature, body);
+        case V2 -> v2Verifier.isValid(V2_PUBLIC_KEY, signature, body);
+      };
+      if (!valid) {
+        respond(exchange, 403);
+      } else if (events.offer(new VerifiedWebhook(version, exchange.getRequestURI().getPath(), body, Instant.now()))) {
+        respond(exchange, 202);
+      } else {
+        // Handlers are falling behind
+        retryLater(exchange, 429);
+      }
+    } catch (SignatureException e) {
+      // Malformed signature, such as one of the wrong length
+      respond(exchange, 403);
+    } catch (GeneralSecurityException | RuntimeException e) {
+      e.printStackTrace();
+      respond(exchange, 500);
+    }
+  }
+
+  /**
+   * Runs on a handler thread: processes verified events until the receiver stops.
+   */
+  private void handleEvents() {
+    try {
+      while (true) {
+        VerifiedWebhook webhook = events.take();
+        try {
+          handler.handle(webhook);
+        } catch (RuntimeException e) {
+          System.err.println("Webhook handler failed for " + webhook.path() + ": " + e);
+        }
+      }
+    } catch (InterruptedException e) {
+      // Stopping
+    }
+  }
+
+  private static void retryLater(HttpExchange exchange, int code) {
+    exchange.getResponseHeaders().set("Retry-After", RETRY_AFTER_SECONDS);
+    respond(exchange, code);
+  }
+
+  private static void respond(HttpExchange exchange, int code) {
+    try {
+      exchange.sendResponseHeaders(code, -1);
+    } catch (IOException e) {
+      // Starling has gone away, and will retry
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static ThreadFactory named(String prefix) {
+    AtomicInteger threadCount = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, prefix + "-" + threadCount.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  enum Version { V1, V2 }
+
+  /**
+   * A webhook whose signature has been verified.
+   */
+  record VerifiedWebhook(Version version, String path, byte[] payload, Instant receivedAt) {
+
+    String body() {
+      return new String(payload, UTF_8);
+    }
+  }
+
+  /**
+   * Processes verified webhooks. Called on the handler threads, so may take as long as it needs.
+   */
+  @FunctionalInterface
+  interface WebhookHandler {
+
+    void handle(VerifiedWebhook webhook);
+  }
+}
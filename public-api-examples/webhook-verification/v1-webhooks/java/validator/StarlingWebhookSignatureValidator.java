@@ -2,13 +2,19 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 
 class StarlingWebhookSignatureValidator {
 
   // Don't hardcode this in production
   public static final String SHARED_SECRET = "aaaaaaaa-aaaa-4aaa-aaaa-aaaaaaaaaaaa";
 
+  private static volatile Verifier verifier;
+
   public static void main(String[] args) throws NoSuchAlgorithmException {
     if (args.length != 2) {
       System.err.println("Expected 2 arguments but got " + args.length);
@@ -25,11 +31,78 @@ class StarlingWebhookSignatureValidator {
   }
 
   public static boolean isValid(String signature, String payload) throws NoSuchAlgorithmException {
-    MessageDigest messageDigest = MessageDigest.getInstance("SHA-512");
-    messageDigest.update(SHARED_SECRET.getBytes(UTF_8));
-    messageDigest.update(payload.getBytes(UTF_8));
-    String calculatedSignature = Base64.getEncoder().encodeToString(messageDigest.digest());
+    return verifier().isValid(signature, payload.getBytes(UTF_8));
+  }
+
+  private static Verifier verifier() throws NoSuchAlgorithmException {
+    Verifier current = verifier;
+    if (current == null) {
+      // Creating two by accident is harmless, so there's no need to lock
+      current = new Verifier(Set.of(SHARED_SECRET));
+      verifier = current;
+    }
+    return current;
+  }
+
+  /**
+   * Verifies webhook signatures against one or more shared secrets, doing as little work per
+   * webhook as it can.
+   * <p>
+   * Each secret is hashed into a SHA-512 digest once, up front. Each webhook then starts from a
+   * copy of that digest, so only the payload is hashed. Signatures are compared as raw bytes in
+   * constant time. To rotate secrets without downtime, verify with both the old and new secrets
+   * until Starling is signing with the new one.
+   */
+  static final class Verifier {
+
+    private final List<MessageDigest> secretDigests = new ArrayList<>();
 
-    return calculatedSignature.equals(signature);
+    Verifier(Collection<String> sharedSecrets) throws NoSuchAlgorithmException {
+      if (sharedSecrets.isEmpty()) {
+        throw new IllegalArgumentException("At least one shared secret is required");
+      }
+      for (String sharedSecret : sharedSecrets) {
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-512");
+        messageDigest.update(sharedSecret.getBytes(UTF_8));
+        secretDigests.add(messageDigest);
+      }
+    }
+
+    /**
+     * @param signature Base64 encoded signature, from the X-Hook-Signature header
+     * @param payload The webhook body, exactly as received
+     */
+    boolean isValid(String signature, byte[] payload) {
+      byte[] decodedSignature;
+      try {
+        decodedSignature = Base64.getDecoder().decode(signature);
+      } catch (IllegalArgumentException e) {
+        return false;
+      }
+      return isValid(decodedSignature, payload);
+    }
+
+    /**
+     * @param signature Decoded signature
+     * @param payload The webhook body, exactly as received
+     */
+    boolean isValid(byte[] signature, byte[] payload) {
+      boolean valid = false;
+      // Check every secret, so the time taken doesn't reveal which one matched
+      for (MessageDigest secretDigest : secretDigests) {
+        MessageDigest messageDigest = copy(secretDigest);
+        messageDigest.update(payload);
+        valid |= MessageDigest.isEqual(messageDigest.digest(), signature);
+      }
+      return valid;
+    }
+
+    private static MessageDigest copy(MessageDigest messageDigest) {
+      try {
+        return (MessageDigest) messageDigest.clone();
+      } catch (CloneNotSupportedException e) {
+        throw new IllegalStateException("SHA-512 digests can be cloned", e);
+      }
+    }
   }
-}
\ No newline at end of file
+}
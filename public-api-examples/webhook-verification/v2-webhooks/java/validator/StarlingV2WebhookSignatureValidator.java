@@ -1,14 +1,24 @@
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 class StarlingV2WebhookSignatureValidator {
 
+  private static final Verifier VERIFIER = new Verifier(16);
+
   public static void main(String[] args) throws InvalidKeySpecException, NoSuchAlgorithmException, InvalidKeyException, SignatureException {
 
     if (args.length != 3) {
@@ -27,13 +37,104 @@ class StarlingV2WebhookSignatureValidator {
 
   static boolean isValid(String publicKey, String signature, String jsonPayload)
       throws NoSuchAlgorithmException, InvalidKeySpecException, InvalidKeyException, SignatureException {
+    return VERIFIER.isValid(publicKey, signature, jsonPayload.getBytes(UTF_8));
+  }
+
+  /**
+   * Verifies webhook signatures, doing as little work per webhook as it can.
+   * <p>
+   * Each distinct public key is only decoded and parsed once, and each thread keeps a verifier
+   * initialised with it, so verifying a webhook costs little more than the RSA verification itself.
+   * Payloads are verified as the raw bytes received, without converting them to a String.
+   */
+  static final class Verifier {
+
+    private final int maxKeys;
+    private final Map<String, VerifyingKey> keys = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxKeys The most public keys to keep parsed at once
+     */
+    Verifier(int maxKeys) {
+      this.maxKeys = maxKeys;
+    }
+
+    boolean isValid(String publicKey, String signature, byte[] payload)
+        throws InvalidKeySpecException, InvalidKeyException, SignatureException {
+      return isValid(publicKey, signature, ByteBuffer.wrap(payload));
+    }
 
-    X509EncodedKeySpec x509publicKey = new X509EncodedKeySpec(Base64.getDecoder().decode(publicKey));
+    /**
+     * Verifies the remaining bytes in a buffer, leaving its position unchanged.
+     */
+    boolean isValid(String publicKey, String signature, ByteBuffer payload)
+        throws InvalidKeySpecException, InvalidKeyException, SignatureException {
+      byte[] decodedSignature;
+      try {
+        decodedSignature = Base64.getDecoder().decode(signature);
+      } catch (IllegalArgumentException e) {
+        return false;
+      }
+      return key(publicKey).verify(payload.duplicate(), decodedSignature);
+    }
+
+    private VerifyingKey key(String publicKey) throws InvalidKeySpecException {
+      VerifyingKey key = keys.get(publicKey);
+      if (key == null) {
+        key = new VerifyingKey(publicKey);
+        if (keys.size() >= maxKeys) {
+          // Make room by evicting an arbitrary key; webhooks are normally signed with just one
+          Iterator<String> eldest = keys.keySet().iterator();
+          if (eldest.hasNext()) {
+            keys.remove(eldest.next());
+          }
+        }
+        VerifyingKey existing = keys.putIfAbsent(publicKey, key);
+        if (existing != null) {
+          key = existing;
+        }
+      }
+      return key;
+    }
+  }
+
+  /**
+   * A parsed public key, with a verifier initialised with it for each thread.
+   */
+  private static final class VerifyingKey {
 
-    Signature signAlg = Signature.getInstance("SHA512withRSA");
-    signAlg.initVerify(KeyFactory.getInstance("RSA").generatePublic(x509publicKey));
-    signAlg.update(jsonPayload.getBytes());
+    private final PublicKey publicKey;
+    private final ThreadLocal<Signature> verifiers = new ThreadLocal<>();
 
-    return signAlg.verify(Base64.getDecoder().decode(signature));
+    VerifyingKey(String publicKey) throws InvalidKeySpecException {
+      X509EncodedKeySpec x509publicKey = new X509EncodedKeySpec(Base64.getDecoder().decode(publicKey));
+      try {
+        this.publicKey = KeyFactory.getInstance("RSA").generatePublic(x509publicKey);
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException("Every Java platform supports RSA", e);
+      }
+    }
+
+    boolean verify(ByteBuffer payload, byte[] signature) throws InvalidKeyException, SignatureException {
+      Signature signAlg = verifiers.get();
+      if (signAlg == null) {
+        try {
+          signAlg = Signature.getInstance("SHA512withRSA");
+        } catch (GeneralSecurityException e) {
+          throw new IllegalStateException("Every Java platform supports SHA512withRSA", e);
+        }
+        signAlg.initVerify(publicKey);
+        verifiers.set(signAlg);
+      }
+
+      try {
+        // verify() resets the verifier, ready for the next webhook with this key
+        signAlg.update(payload);
+        return signAlg.verify(signature);
+      } catch (SignatureException e) {
+        verifiers.remove();
+        throw e;
+      }
+    }
   }
 }